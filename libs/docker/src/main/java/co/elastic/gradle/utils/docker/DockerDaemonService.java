@@ -0,0 +1,182 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils.docker;
+
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coordinates the use of the Docker daemon across all the tasks of a build.
+ * <p>
+ * Probes of the daemon are only done once per build, and heavy operations are limited so that a parallel build doesn't
+ * overwhelm the daemon. The limits can be configured with Gradle properties, e.g.
+ * {@code co.elastic.docker.max-concurrent-builds=2}.
+ */
+public abstract class DockerDaemonService implements BuildService<DockerDaemonService.Parameters>, AutoCloseable {
+
+    public static final String NAME = "dockerDaemon";
+
+    private static final Logger logger = Logging.getLogger(DockerDaemonService.class);
+
+    public enum Operation {
+        // At least two, so the architectures of a lockfile can be built at the same time
+        BUILD(Math.max(2, Runtime.getRuntime().availableProcessors() / 4)),
+        SAVE(2),
+        LOAD(2);
+
+        private final int defaultLimit;
+
+        Operation(int defaultLimit) {
+            this.defaultLimit = defaultLimit;
+        }
+
+        public String propertyName() {
+            return "co.elastic.docker.max-concurrent-" + name().toLowerCase() + "s";
+        }
+    }
+
+    public interface Parameters extends BuildServiceParameters {
+        Property<Integer> getMaxConcurrentBuilds();
+
+        Property<Integer> getMaxConcurrentSaves();
+
+        Property<Integer> getMaxConcurrentLoads();
+    }
+
+    public record OperationTimings(long count, Duration total, Duration waiting) {
+    }
+
+    private final Map<String, Object> probes = new ConcurrentHashMap<>();
+    private final Map<Operation, Semaphore> permits = new ConcurrentHashMap<>();
+    private final Map<Operation, AtomicLong> counts = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicLong> totalNanos = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicLong> waitingNanos = new EnumMap<>(Operation.class);
+
+    public DockerDaemonService() {
+        for (Operation operation : Operation.values()) {
+            counts.put(operation, new AtomicLong());
+            totalNanos.put(operation, new AtomicLong());
+            waitingNanos.put(operation, new AtomicLong());
+        }
+    }
+
+    public static Provider<DockerDaemonService> registerIfAbsent(Project project) {
+        return project.getGradle().getSharedServices().registerIfAbsent(
+                NAME,
+                DockerDaemonService.class,
+                spec -> {
+                    final Parameters parameters = spec.getParameters();
+                    parameters.getMaxConcurrentBuilds().set(limitFromProperty(project, Operation.BUILD));
+                    parameters.getMaxConcurrentSaves().set(limitFromProperty(project, Operation.SAVE));
+                    parameters.getMaxConcurrentLoads().set(limitFromProperty(project, Operation.LOAD));
+                }
+        );
+    }
+
+    private static Provider<Integer> limitFromProperty(Project project, Operation operation) {
+        return project.getProviders().gradleProperty(operation.propertyName())
+                .map(Integer::parseInt)
+                .orElse(operation.defaultLimit);
+    }
+
+    private int getLimit(Operation operation) {
+        final Parameters parameters = getParameters();
+        return switch (operation) {
+            case BUILD -> parameters.getMaxConcurrentBuilds().getOrElse(operation.defaultLimit);
+            case SAVE -> parameters.getMaxConcurrentSaves().getOrElse(operation.defaultLimit);
+            case LOAD -> parameters.getMaxConcurrentLoads().getOrElse(operation.defaultLimit);
+        };
+    }
+
+    /**
+     * Returns the result of a probe of the daemon, e.g. its version, running it only the first time it's requested.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T probe(String name, Supplier<T> probe) {
+        return (T) probes.computeIfAbsent(name, key -> probe.get());
+    }
+
+    /**
+     * Runs a heavy operation once a permit is available for it, and records how long it took.
+     */
+    public <T> T run(Operation operation, Supplier<T> action) {
+        final long waitStart = System.nanoTime();
+        final Semaphore semaphore = permits.computeIfAbsent(
+                operation,
+                key -> new Semaphore(Math.max(1, getLimit(key)), true)
+        );
+        semaphore.acquireUninterruptibly();
+        final long start = System.nanoTime();
+        waitingNanos.get(operation).addAndGet(start - waitStart);
+        try {
+            return action.get();
+        } finally {
+            semaphore.release();
+            totalNanos.get(operation).addAndGet(System.nanoTime() - start);
+            counts.get(operation).incrementAndGet();
+        }
+    }
+
+    public void run(Operation operation, Runnable action) {
+        run(operation, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    public Map<Operation, OperationTimings> getTimings() {
+        final Map<Operation, OperationTimings> timings = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            timings.put(operation, new OperationTimings(
+                    counts.get(operation).get(),
+                    Duration.ofNanos(totalNanos.get(operation).get()),
+                    Duration.ofNanos(waitingNanos.get(operation).get())
+            ));
+        }
+        return timings;
+    }
+
+    @Override
+    public void close() {
+        getTimings().forEach((operation, timings) -> {
+            if (timings.count() > 0) {
+                logger.info(
+                        "Docker {}: {} operations took {}s, waited {}s for the daemon",
+                        operation.name().toLowerCase(),
+                        timings.count(),
+                        timings.total().toMillis() / 1000.0,
+                        timings.waiting().toMillis() / 1000.0
+                );
+            }
+        });
+    }
+}
@@ -6,6 +6,7 @@ dependencies {
     implementation(gradleApi())
     implementation("org.apache.commons:commons-compress:1.27.1")
     implementation("commons-io:commons-io:2.16.1")
+    implementation("com.github.luben:zstd-jni:1.5.6-4")
     testImplementation("org.junit.jupiter:junit-jupiter:5.11.0")
 }
 
@@ -0,0 +1,330 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.gradle.api.GradleException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Fails the writing of a compressed image archive as soon as it grows past a maximum size, rather than after it was
+ * completely written.
+ * <p>
+ * The compressed output is wrapped with {@link #limit(OutputStream)} to count its size, and the uncompressed tar
+ * stream with {@link #trackEntries(OutputStream)} to know the largest entries, e.g. layers, written so far. These are
+ * reported when the limit is exceeded, so the culprit can be found without having to build the image again. The limit
+ * applies to all the archives written through the same instance, e.g. the archives of different architectures.
+ * <p>
+ * Once the limit is exceeded, writing the uncompressed archive fails, while writes to the compressed archive, e.g. when
+ * the compressor is closed, are discarded so the streams can still be closed. Callers should
+ * call {@link #assertNotExceeded()} once writing finished, since the failure doesn't propagate when writing the output
+ * of a process, see {@link #forProcessOutput(OutputStream)}.
+ */
+public class ArchiveSizeLimit {
+
+    private static final int TAR_BLOCK_SIZE = 512;
+    private static final int LARGEST_ENTRIES_TO_REPORT = 5;
+    private static final long MAX_METADATA_SIZE = 1024 * 1024;
+
+    public record Entry(String name, long size) {
+    }
+
+    private final String taskPath;
+    private final long maxSizeMB;
+    private final AtomicLong written = new AtomicLong();
+    private final List<Entry> entries = new ArrayList<>();
+    private final Set<Entry> inProgress = Collections.newSetFromMap(new IdentityHashMap<>());
+    private volatile GradleException failure;
+
+    public ArchiveSizeLimit(String taskPath, long maxSizeMB) {
+        this.taskPath = taskPath;
+        this.maxSizeMB = maxSizeMB;
+    }
+
+    public boolean isEnabled() {
+        return maxSizeMB > 0;
+    }
+
+    /**
+     * Counts the bytes written to the compressed archive, failing as soon as they exceed the limit.
+     */
+    public OutputStream limit(OutputStream compressedArchive) {
+        if (!isEnabled()) {
+            return compressedArchive;
+        }
+        final long maxSize = maxSizeMB * 1024 * 1024;
+        return new FilterOutputStream(compressedArchive) {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (failure != null) {
+                    return;
+                }
+                final long total = written.addAndGet(len);
+                if (total > maxSize) {
+                    synchronized (ArchiveSizeLimit.this) {
+                        if (failure == null) {
+                            failure = new GradleException(describeFailure(total));
+                        }
+                    }
+                    throw failure;
+                }
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Keeps track of the entries of the uncompressed tar archive being written.
+     */
+    public OutputStream trackEntries(OutputStream uncompressedArchive) {
+        if (!isEnabled()) {
+            return uncompressedArchive;
+        }
+        return new TarEntryTrackingOutputStream(uncompressedArchive);
+    }
+
+    /**
+     * Wraps the archive written from the output of a process, so exceeding the limit doesn't stop the output from being
+     * consumed, which would leave the process blocked.
+     */
+    public OutputStream forProcessOutput(OutputStream archive) {
+        if (!isEnabled()) {
+            return archive;
+        }
+        return new FilterOutputStream(archive) {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (failure != null) {
+                    return;
+                }
+                try {
+                    out.write(b, off, len);
+                } catch (GradleException e) {
+                    if (failure == null) {
+                        throw e;
+                    }
+                }
+            }
+        };
+    }
+
+    public void assertNotExceeded() {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public synchronized List<Entry> getLargestEntries() {
+        return Stream.concat(entries.stream(), inProgress.stream())
+                .sorted(Comparator.comparingLong(Entry::size).reversed())
+                .limit(LARGEST_ENTRIES_TO_REPORT)
+                .toList();
+    }
+
+    private synchronized String describeFailure(long written) {
+        final List<Entry> largest = getLargestEntries();
+        return "Task " + taskPath + " output exceeded the current limit of " + maxSizeMB + "Mb after writing " +
+               (written / (1024 * 1024)) + "Mb, the archive was not completed." +
+               (largest.isEmpty() ? "" : " Largest entries:\n" + largest.stream()
+                       .map(entry -> "  " + entry.name() + " (" + (entry.size() / (1024 * 1024)) + "Mb" +
+                                     (inProgress.contains(entry) ? ", being written" : "") + ")")
+                       .collect(Collectors.joining("\n")));
+    }
+
+    private synchronized Entry startEntry(String name, long size) {
+        final Entry entry = new Entry(name, size);
+        inProgress.add(entry);
+        return entry;
+    }
+
+    private synchronized void finishEntry(Entry entry) {
+        if (inProgress.remove(entry)) {
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * Parses tar headers as they are written, following GNU long names and PAX paths.
+     */
+    private class TarEntryTrackingOutputStream extends FilterOutputStream {
+        private final byte[] header = new byte[TAR_BLOCK_SIZE];
+        private int headerFill = 0;
+        private long dataRemaining = 0;
+        private long paddingRemaining = 0;
+        private byte type;
+        private ByteArrayOutputStream metadata;
+        private String nextName;
+        private Entry entry;
+
+        TarEntryTrackingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (failure != null) {
+                // Not the same exception, as this can happen while closing the stream because of the original one
+                throw new GradleException(failure.getMessage(), failure);
+            }
+            // Parse before writing, so the entry being written is known if this fails
+            parse(b, off, len);
+            out.write(b, off, len);
+        }
+
+        private void parse(byte[] b, int off, int len) {
+            int pos = off;
+            final int end = off + len;
+            while (pos < end) {
+                if (dataRemaining > 0) {
+                    final int n = (int) Math.min(dataRemaining, end - pos);
+                    if (metadata != null) {
+                        metadata.write(b, pos, n);
+                    }
+                    dataRemaining -= n;
+                    pos += n;
+                    if (dataRemaining == 0) {
+                        endOfData();
+                    }
+                } else if (paddingRemaining > 0) {
+                    final int n = (int) Math.min(paddingRemaining, end - pos);
+                    paddingRemaining -= n;
+                    pos += n;
+                } else {
+                    final int n = Math.min(TAR_BLOCK_SIZE - headerFill, end - pos);
+                    System.arraycopy(b, pos, header, headerFill, n);
+                    headerFill += n;
+                    pos += n;
+                    if (headerFill == TAR_BLOCK_SIZE) {
+                        headerFill = 0;
+                        startOfEntry();
+                    }
+                }
+            }
+        }
+
+        private void startOfEntry() {
+            boolean empty = true;
+            for (byte each : header) {
+                if (each != 0) {
+                    empty = false;
+                    break;
+                }
+            }
+            if (empty) {
+                // End of archive marker
+                return;
+            }
+            final long size = parseSize();
+            type = header[156];
+            dataRemaining = size;
+            paddingRemaining = (TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE;
+            if (type == 'L' || type == 'x') {
+                metadata = size <= MAX_METADATA_SIZE ? new ByteArrayOutputStream() : null;
+            } else {
+                final String name = nextName != null ? nextName : parseName();
+                nextName = null;
+                if (type == '0' || type == 0) {
+                    entry = startEntry(name, size);
+                }
+            }
+            if (size == 0) {
+                endOfData();
+            }
+        }
+
+        private void endOfData() {
+            if (type == 'L' || type == 'x') {
+                if (metadata != null) {
+                    final String content = metadata.toString(StandardCharsets.UTF_8);
+                    nextName = type == 'L' ? content.replace("\0", "") : parsePaxPath(content);
+                }
+                metadata = null;
+            } else if (entry != null) {
+                finishEntry(entry);
+                entry = null;
+            }
+        }
+
+        private String parseName() {
+            final String name = readString(0, 100);
+            // ustar archives can split long names into a prefix
+            if (readString(257, 5).equals("ustar")) {
+                final String prefix = readString(345, 155);
+                if (!prefix.isEmpty()) {
+                    return prefix + "/" + name;
+                }
+            }
+            return name;
+        }
+
+        private long parseSize() {
+            if ((header[124] & 0x80) != 0) {
+                // Base-256 encoding for large sizes
+                long size = 0;
+                for (int i = 125; i < 136; i++) {
+                    size = (size << 8) | (header[i] & 0xff);
+                }
+                return size;
+            }
+            final String octal = readString(124, 12).trim();
+            return octal.isEmpty() ? 0 : Long.parseLong(octal, 8);
+        }
+
+        private String readString(int offset, int length) {
+            int end = offset;
+            while (end < offset + length && header[end] != 0) {
+                end++;
+            }
+            return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+        }
+
+        private static String parsePaxPath(String records) {
+            for (String record : records.split("\n")) {
+                final int path = record.indexOf(" path=");
+                if (path >= 0) {
+                    return record.substring(path + " path=".length());
+                }
+            }
+            return null;
+        }
+    }
+}
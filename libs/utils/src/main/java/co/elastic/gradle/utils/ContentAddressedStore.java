@@ -0,0 +1,195 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * A directory of files addressed by the SHA-1 of their content, shared by everything that adds to it.
+ * <p>
+ * Adding the same content any number of times, from any number of callers, results in a single file, so disk use
+ * scales with the number of unique files. Files are hard-linked into the store where possible and copied otherwise.
+ * Copies are made into a {@code .part} file that is moved in place once complete, so a partially written file is never
+ * visible in the store. Files in the store must not be modified in place.
+ * <p>
+ * Files resolved from the Gradle cache are already stored in a directory named after their SHA-1, which is used instead
+ * of reading them.
+ */
+public class ContentAddressedStore implements AutoCloseable {
+
+    private static final Pattern SHA1 = Pattern.compile("[0-9a-f]{40}");
+    private static final String PART_SUFFIX = ".part";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public record Result(int present, int linked, int copied) {
+    }
+
+    private final Path root;
+    private final ExecutorService executor;
+    private final Map<Path, Future<Path>> sources = new ConcurrentHashMap<>();
+    private final Map<Path, Object> destinations = new ConcurrentHashMap<>();
+    private final AtomicInteger present = new AtomicInteger();
+    private final AtomicInteger linked = new AtomicInteger();
+    private final AtomicInteger copied = new AtomicInteger();
+
+    public ContentAddressedStore(Path root, int maxParallelism) {
+        this.root = root;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, maxParallelism), runnable -> {
+            final Thread thread = new Thread(runnable, "content-addressed-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Adds the files to the store in parallel and returns the stored files, in the same order. Stored files keep the
+     * name of the file they were added from.
+     */
+    public List<File> addAll(Collection<File> files) {
+        final List<Future<Path>> pending = new ArrayList<>(files.size());
+        for (File file : files) {
+            pending.add(add(file.toPath()));
+        }
+        final List<File> result = new ArrayList<>(pending.size());
+        for (Future<Path> each : pending) {
+            try {
+                result.add(each.get().toFile());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) {
+                    throw new UncheckedIOException(cause);
+                }
+                if (e.getCause() instanceof UncheckedIOException cause) {
+                    throw cause;
+                }
+                throw new IllegalStateException("Failed to add file to " + root, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while adding files to " + root, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * What was done to add files since the store was created. The same file added more than once is only counted
+     * once.
+     */
+    public Result getResult() {
+        return new Result(present.get(), linked.get(), copied.get());
+    }
+
+    private Future<Path> add(Path source) {
+        return sources.computeIfAbsent(source.toAbsolutePath(), path -> executor.submit(() -> {
+            final String sha1 = sha1(path);
+            final Path destination = root.resolve(sha1.substring(0, 2)).resolve(sha1).resolve(path.getFileName());
+            synchronized (destinations.computeIfAbsent(destination, key -> new Object())) {
+                return store(path, destination);
+            }
+        }));
+    }
+
+    private Path store(Path source, Path destination) throws IOException {
+        if (Files.isRegularFile(destination)) {
+            present.incrementAndGet();
+            return destination;
+        }
+        Files.createDirectories(destination.getParent());
+        try {
+            Files.createLink(destination, source);
+            linked.incrementAndGet();
+            return destination;
+        } catch (FileAlreadyExistsException e) {
+            // Added by another build in the meantime
+            present.incrementAndGet();
+            return destination;
+        } catch (IOException | UnsupportedOperationException e) {
+            // Not on the same file system, copy instead
+        }
+        copy(source, destination);
+        copied.incrementAndGet();
+        return destination;
+    }
+
+    /**
+     * Copies the source to the destination through a {@code .part} file. Whatever an interrupted attempt left in the
+     * {@code .part} file is overwritten.
+     */
+    static void copy(Path source, Path destination) throws IOException {
+        final Path part = destination.resolveSibling(destination.getFileName() + PART_SUFFIX);
+        try (FileChannel input = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = output.lock()) {
+            if (Files.isRegularFile(destination)) {
+                // Completed by another build while waiting for the lock
+                return;
+            }
+            output.truncate(0);
+            long position = 0;
+            final long size = input.size();
+            while (position < size) {
+                position += input.transferTo(position, size - position, output);
+            }
+            output.force(true);
+        }
+        Files.setLastModifiedTime(part, Files.getLastModifiedTime(source));
+        Files.move(part, destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String sha1(Path file) {
+        final Path parent = file.getParent();
+        final String fromPath = parent == null ? null : parent.getFileName().toString();
+        if (fromPath != null && SHA1.matcher(fromPath).matches()) {
+            return fromPath;
+        }
+        try (InputStream input = Files.newInputStream(file)) {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Synchronizes a flat directory with a set of files, e.g. the resolved files of a configuration, by hard-linking them
+ * instead of copying their content.
+ * <p>
+ * Files that are already in place are left alone, so the time it takes is proportional to what changed. Where hard
+ * links are not possible, e.g. across file systems, files are copied with their attributes so that unchanged copies can
+ * still be recognized on the next run. Linked files share their content with the source, so they must not be modified
+ * in place.
+ * <p>
+ * Since the target is flat, the sources must be regular files with distinct names, anything else is rejected rather
+ * than silently dropping content.
+ */
+public class LinkedFileSync {
+
+    public record Result(int unchanged, int linked, int copied, int removed) {
+    }
+
+    public static Result sync(Collection<File> sources, Path target) {
+        final Map<String, Path> byName = new HashMap<>();
+        for (File source : sources) {
+            if (!Files.isRegularFile(source.toPath())) {
+                throw new IllegalArgumentException("Can only sync regular files, but " + source + " is not one");
+            }
+            final Path previous = byName.putIfAbsent(source.getName(), source.toPath());
+            if (previous != null && !previous.equals(source.toPath())) {
+                throw new IllegalArgumentException(
+                        "Can't sync both " + previous + " and " + source + " as they have the same name"
+                );
+            }
+        }
+        int unchanged = 0, linked = 0, copied = 0, removed = 0;
+        try {
+            Files.createDirectories(target);
+            try (Stream<Path> existing = Files.list(target)) {
+                for (Path path : (Iterable<Path>) existing::iterator) {
+                    if (!byName.containsKey(path.getFileName().toString())) {
+                        deleteRecursively(path);
+                        removed++;
+                    }
+                }
+            }
+            for (Map.Entry<String, Path> entry : byName.entrySet()) {
+                final Path source = entry.getValue();
+                final Path destination = target.resolve(entry.getKey());
+                if (isUpToDate(source, destination)) {
+                    unchanged++;
+                    continue;
+                }
+                if (Files.exists(destination, LinkOption.NOFOLLOW_LINKS)) {
+                    deleteRecursively(destination);
+                }
+                try {
+                    Files.createLink(destination, source);
+                    linked++;
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(source, destination, StandardCopyOption.COPY_ATTRIBUTES);
+                    copied++;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Result(unchanged, linked, copied, removed);
+    }
+
+    private static boolean isUpToDate(Path source, Path destination) throws IOException {
+        if (!Files.isRegularFile(destination, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        if (Files.isSameFile(source, destination)) {
+            return true;
+        }
+        final BasicFileAttributes sourceAttributes = Files.readAttributes(source, BasicFileAttributes.class);
+        final BasicFileAttributes destinationAttributes = Files.readAttributes(destination, BasicFileAttributes.class);
+        return sourceAttributes.size() == destinationAttributes.size() &&
+               sourceAttributes.lastModifiedTime().equals(destinationAttributes.lastModifiedTime());
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            try (Stream<Path> children = Files.list(path)) {
+                for (Path child : (Iterable<Path>) children::iterator) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+        Files.delete(path);
+    }
+}
@@ -19,7 +19,9 @@
 package co.elastic.gradle.utils;
 
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 
 public class RetryUtils {
@@ -35,6 +37,8 @@ public class RetryUtils {
         private Optional<Consumer<Exception>> retryErrorConsumer = Optional.empty();
         private Optional<Integer> maxAttempt = Optional.empty();
         private Optional<Long> initialDelay = Optional.empty();
+        private Optional<RetryBudget> budget = Optional.empty();
+        private Optional<Predicate<Exception>> retryOn = Optional.empty();
 
         private RetryBuilder(Supplier<T> action) {
             this.action = action;
@@ -65,6 +69,23 @@ public class RetryUtils {
             return this;
         }
 
+        /**
+         * Share retries between multiple actions, e.g. concurrent uploads to the same registry, so that a systemic
+         * failure doesn't multiply the number of attempts by the number of actions.
+         */
+        public RetryBuilder<T> budget(RetryBudget budget) {
+            this.budget = Optional.ofNullable(budget);
+            return this;
+        }
+
+        /**
+         * Only retry the errors that match, e.g. to fail right away on errors that won't go away by retrying.
+         */
+        public RetryBuilder<T> retryOn(Predicate<Exception> retryOn) {
+            this.retryOn = Optional.ofNullable(retryOn);
+            return this;
+        }
+
         private T execute(int attempts) {
             if (attempts == 0) {
                 this.initialDelay.ifPresent(delay -> {
@@ -80,9 +101,15 @@ public class RetryUtils {
             try {
                 return action.get();
             } catch (Exception e) {
+                retryOn
+                        .filter(retryOn -> !retryOn.test(e))
+                        .ifPresent( it -> { throw e; } );
                 maxAttempt
                         .filter(maxAttempt -> attempts >= maxAttempt - 1)
                         .ifPresent( it -> { throw e; } );
+                budget
+                        .filter(budget -> !budget.tryAcquire())
+                        .ifPresent( it -> { throw e; } );
                 retryErrorConsumer.ifPresent(onError -> onError.accept(e));
                 scheduler.ifPresent(scheduler -> {
                     try {
@@ -101,6 +128,22 @@ public class RetryUtils {
 
     }
 
+    public static class RetryBudget {
+        private final AtomicInteger remaining;
+
+        public RetryBudget(int maxRetries) {
+            this.remaining = new AtomicInteger(maxRetries);
+        }
+
+        public boolean tryAcquire() {
+            return remaining.getAndUpdate(value -> Math.max(0, value - 1)) > 0;
+        }
+
+        public int getRemaining() {
+            return remaining.get();
+        }
+    }
+
     public interface RetryScheduler {
         long deferTime(int count);
     }
@@ -0,0 +1,80 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * Settings for compressing image archives with zstd.
+ *
+ * @param level                zstd compression level, from 1 to 19
+ * @param workers              number of threads compressing in parallel, 0 to compress on the calling thread only
+ * @param longDistanceMatching find matches further apart, which helps with large archives
+ */
+public record ZstdCompression(int level, int workers, boolean longDistanceMatching) implements Serializable {
+
+    public static final int DEFAULT_LEVEL = 3;
+
+    /**
+     * Compression scales poorly past a few threads, and Gradle might be running other work at the same time.
+     */
+    private static final int MAX_DEFAULT_WORKERS = 8;
+
+    /**
+     * Window used for long distance matching. Larger windows require decompressing with a raised window limit, this is
+     * the largest one that {@link ExtractCompressedTar#uncompressedInputStream} can read with the default settings.
+     */
+    private static final int LONG_DISTANCE_WINDOW_LOG = 27;
+
+    public ZstdCompression {
+        if (level < 1 || level > 19) {
+            throw new IllegalArgumentException("The zstd compression level must be between 1 and 19 but was " + level);
+        }
+        if (workers < 0) {
+            throw new IllegalArgumentException("The number of zstd workers can't be negative but was " + workers);
+        }
+    }
+
+    /**
+     * The default number of workers for each archive when compressing {@code concurrentArchives} at the same time, so
+     * that together they don't use more than the available processors.
+     */
+    public static int defaultWorkers(int concurrentArchives) {
+        return defaultWorkers(Runtime.getRuntime().availableProcessors(), concurrentArchives);
+    }
+
+    static int defaultWorkers(int processors, int concurrentArchives) {
+        return Math.max(1, Math.min(MAX_DEFAULT_WORKERS, processors / Math.max(1, concurrentArchives)));
+    }
+
+    public OutputStream compress(OutputStream out) throws IOException {
+        final ZstdOutputStream compressed = new ZstdOutputStream(out, level);
+        if (workers > 0) {
+            compressed.setWorkers(workers);
+        }
+        if (longDistanceMatching) {
+            compressed.setLong(LONG_DISTANCE_WINDOW_LOG);
+        }
+        return compressed;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.gradle.api.GradleException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ArchiveSizeLimitTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    void failsAsSoonAsLimitIsExceeded() {
+        final ArchiveSizeLimit limit = new ArchiveSizeLimit(":image", 1);
+        final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        final GradleException exception = assertThrows(GradleException.class, () -> {
+            try (TarArchiveOutputStream tar = new TarArchiveOutputStream(limit.trackEntries(limit.limit(archive)))) {
+                tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+                addEntry(tar, "manifest.json", 100);
+                addEntry(tar, "blobs/sha256/" + "a".repeat(120), MB / 2);
+                addEntry(tar, "blobs/sha256/large", 2 * MB);
+                addEntry(tar, "blobs/sha256/never-written", MB);
+            }
+        });
+
+        assertTrue(archive.size() <= MB, "archive grew to " + archive.size());
+        assertTrue(exception.getMessage().contains("blobs/sha256/large (2Mb, being written)"), exception.getMessage());
+        assertFalse(exception.getMessage().contains("never-written"), exception.getMessage());
+        assertEquals(
+                List.of("blobs/sha256/large", "blobs/sha256/" + "a".repeat(120), "manifest.json"),
+                limit.getLargestEntries().stream().map(ArchiveSizeLimit.Entry::name).toList()
+        );
+        assertThrows(GradleException.class, limit::assertNotExceeded);
+    }
+
+    @Test
+    void allowsArchivesWithinLimit() throws IOException {
+        final ArchiveSizeLimit limit = new ArchiveSizeLimit(":image", 1);
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(
+                limit.trackEntries(limit.limit(OutputStream.nullOutputStream())))) {
+            addEntry(tar, "layer.tar", MB / 2);
+        }
+        limit.assertNotExceeded();
+        assertEquals(List.of(new ArchiveSizeLimit.Entry("layer.tar", MB / 2)), limit.getLargestEntries());
+    }
+
+    private static void addEntry(TarArchiveOutputStream tar, String name, int size) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(size);
+        tar.putArchiveEntry(entry);
+        final byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        tar.write(content);
+        tar.closeArchiveEntry();
+    }
+}
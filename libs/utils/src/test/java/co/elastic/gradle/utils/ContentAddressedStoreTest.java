@@ -0,0 +1,94 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentAddressedStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private ContentAddressedStore store;
+
+    @BeforeEach
+    void setUp() {
+        store = new ContentAddressedStore(tempDir.resolve("store"), 4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.close();
+    }
+
+    @Test
+    void storesIdenticalContentOnce() throws IOException {
+        final File first = Files.writeString(Files.createDirectories(tempDir.resolve("a")).resolve("curl.deb"), "curl").toFile();
+        final File second = Files.writeString(Files.createDirectories(tempDir.resolve("b")).resolve("curl.deb"), "curl").toFile();
+        final File other = Files.writeString(tempDir.resolve("a").resolve("patch.deb"), "patch").toFile();
+
+        final List<File> stored = store.addAll(List.of(first, second, other));
+
+        assertEquals(stored.get(0), stored.get(1));
+        assertEquals("curl.deb", stored.get(0).getName());
+        assertEquals("patch", Files.readString(stored.get(2).toPath()));
+        assertTrue(stored.get(0).toPath().startsWith(tempDir.resolve("store")));
+        assertEquals(new ContentAddressedStore.Result(1, 2, 0), store.getResult());
+
+        // Adding the same files again doesn't touch the store
+        assertEquals(List.of(stored.get(0), stored.get(2)), store.addAll(List.of(first, other)));
+        assertEquals(new ContentAddressedStore.Result(1, 2, 0), store.getResult());
+    }
+
+    @Test
+    void usesTheChecksumFromTheGradleCache() throws IOException {
+        final String sha1 = "0123456789abcdef0123456789abcdef01234567";
+        final File cached = Files.writeString(
+                Files.createDirectories(tempDir.resolve("files-2.1/group/name/1.0").resolve(sha1)).resolve("name-1.0.rpm"),
+                "content"
+        ).toFile();
+
+        final List<File> stored = store.addAll(List.of(cached));
+
+        assertEquals(tempDir.resolve("store/01").resolve(sha1).resolve("name-1.0.rpm").toFile(), stored.get(0));
+    }
+
+    @Test
+    void overwritesWhatAnInterruptedCopyLeftBehind() throws IOException {
+        final Path source = Files.writeString(tempDir.resolve("big.apk"), "the content");
+        final Path destination = Files.createDirectories(tempDir.resolve("store")).resolve("big.apk");
+        Files.writeString(destination.resolveSibling("big.apk.part"), "something else that is longer");
+
+        ContentAddressedStore.copy(source, destination);
+
+        assertEquals("the content", Files.readString(destination));
+        assertFalse(Files.exists(destination.resolveSibling("big.apk.part")));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LinkedFileSyncTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void onlyUpdatesWhatChanged() throws IOException {
+        final Path cache = Files.createDirectories(tempDir.resolve("cache"));
+        final Path target = tempDir.resolve("target");
+        final File first = Files.writeString(cache.resolve("first.deb"), "first").toFile();
+        final File second = Files.writeString(cache.resolve("second.deb"), "second").toFile();
+
+        assertEquals(new LinkedFileSync.Result(0, 2, 0, 0), LinkedFileSync.sync(List.of(first, second), target));
+        assertTrue(Files.isSameFile(first.toPath(), target.resolve("first.deb")));
+        assertEquals("second", Files.readString(target.resolve("second.deb")));
+
+        final File third = Files.writeString(cache.resolve("third.deb"), "third").toFile();
+        Files.writeString(target.resolve("stale.deb"), "stale");
+        assertEquals(new LinkedFileSync.Result(1, 1, 0, 2), LinkedFileSync.sync(List.of(first, third), target));
+        assertFalse(Files.exists(target.resolve("second.deb")));
+        assertFalse(Files.exists(target.resolve("stale.deb")));
+        assertEquals("third", Files.readString(target.resolve("third.deb")));
+    }
+
+    @Test
+    void replacesFilesWithDifferentContent() throws IOException {
+        final Path cache = Files.createDirectories(tempDir.resolve("cache"));
+        final Path target = Files.createDirectories(tempDir.resolve("target"));
+        final File source = Files.writeString(cache.resolve("package.rpm"), "new content").toFile();
+        Files.writeString(target.resolve("package.rpm"), "old");
+
+        assertEquals(new LinkedFileSync.Result(0, 1, 0, 0), LinkedFileSync.sync(List.of(source), target));
+        assertEquals("new content", Files.readString(target.resolve("package.rpm")));
+    }
+
+    @Test
+    void rejectsFilesWithTheSameName() throws IOException {
+        final Path target = tempDir.resolve("target");
+        final File first = Files.writeString(
+                Files.createDirectories(tempDir.resolve("first")).resolve("package.deb"), "first"
+        ).toFile();
+        final File second = Files.writeString(
+                Files.createDirectories(tempDir.resolve("second")).resolve("package.deb"), "second"
+        ).toFile();
+
+        final IllegalArgumentException e = assertThrows(
+                IllegalArgumentException.class,
+                () -> LinkedFileSync.sync(List.of(first, second), target)
+        );
+        assertTrue(e.getMessage().contains("same name"), e.getMessage());
+        assertFalse(Files.exists(target));
+
+        assertEquals(new LinkedFileSync.Result(0, 1, 0, 0), LinkedFileSync.sync(List.of(first, first), target));
+    }
+
+    @Test
+    void rejectsDirectories() throws IOException {
+        final Path target = tempDir.resolve("target");
+        final Path directory = Files.createDirectories(tempDir.resolve("cache/directory"));
+        Files.writeString(directory.resolve("content.txt"), "content");
+
+        final IllegalArgumentException e = assertThrows(
+                IllegalArgumentException.class,
+                () -> LinkedFileSync.sync(List.of(directory.toFile()), target)
+        );
+        assertTrue(e.getMessage().contains("regular files"), e.getMessage());
+        assertFalse(Files.exists(target));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryUtilsTest {
+
+    @Test
+    void retriesUntilSuccess() {
+        final AtomicInteger calls = new AtomicInteger();
+        final String result = RetryUtils.retry(() -> {
+                    if (calls.incrementAndGet() < 3) {
+                        throw new IllegalStateException("failed");
+                    }
+                    return "done";
+                })
+                .maxAttempt(5)
+                .execute();
+        assertEquals("done", result);
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void sharedBudgetLimitsRetriesAcrossActions() {
+        final RetryUtils.RetryBudget budget = new RetryUtils.RetryBudget(3);
+        final AtomicInteger calls = new AtomicInteger();
+
+        assertThrows(IllegalStateException.class, () -> RetryUtils.retry(() -> {
+                    calls.incrementAndGet();
+                    throw new IllegalStateException("failed");
+                })
+                .maxAttempt(10)
+                .budget(budget)
+                .execute());
+        assertEquals(4, calls.get());
+        assertEquals(0, budget.getRemaining());
+
+        // No retries left for other actions sharing the budget
+        assertThrows(IllegalStateException.class, () -> RetryUtils.retry(() -> {
+                    calls.incrementAndGet();
+                    throw new IllegalStateException("failed");
+                })
+                .maxAttempt(10)
+                .budget(budget)
+                .execute());
+        assertEquals(5, calls.get());
+    }
+
+    @Test
+    void failsRightAwayOnErrorsThatAreNotRetried() {
+        final AtomicInteger calls = new AtomicInteger();
+
+        assertThrows(IllegalArgumentException.class, () -> RetryUtils.retry(() -> {
+                    if (calls.incrementAndGet() == 1) {
+                        throw new IllegalStateException("transient");
+                    }
+                    throw new IllegalArgumentException("permanent");
+                })
+                .maxAttempt(10)
+                .retryOn(e -> e instanceof IllegalStateException)
+                .execute());
+        assertEquals(2, calls.get());
+    }
+}
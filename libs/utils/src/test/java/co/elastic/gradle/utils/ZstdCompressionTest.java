@@ -0,0 +1,71 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ZstdCompressionTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void multithreadedLongDistanceArchivesCanBeRead() throws IOException {
+        final byte[] content = new byte[8 * 1024 * 1024];
+        new Random(42).nextBytes(content);
+        // Repeated further apart than the default window, so only long distance matching can find it
+        final Path archive = tempDir.resolve("archive.zstd");
+        try (OutputStream out = new ZstdCompression(ZstdCompression.DEFAULT_LEVEL, 4, true).compress(Files.newOutputStream(archive))) {
+            out.write(content);
+            out.write(content);
+        }
+
+        assertTrue(Files.size(archive) < content.length * 2L);
+        try (InputStream in = ExtractCompressedTar.uncompressedInputStream(archive)) {
+            final byte[] result = in.readAllBytes();
+            assertEquals(content.length * 2, result.length);
+            assertArrayEquals(content, Arrays.copyOfRange(result, 0, content.length));
+            assertArrayEquals(content, Arrays.copyOfRange(result, content.length, result.length));
+        }
+    }
+
+    @Test
+    void defaultWorkersShareTheProcessors() {
+        assertEquals(8, ZstdCompression.defaultWorkers(32, 1));
+        assertEquals(6, ZstdCompression.defaultWorkers(12, 2));
+        assertEquals(1, ZstdCompression.defaultWorkers(2, 4));
+        assertEquals(4, ZstdCompression.defaultWorkers(4, 0));
+    }
+
+    @Test
+    void rejectsInvalidLevel() {
+        assertThrows(IllegalArgumentException.class, () -> new ZstdCompression(0, 0, false));
+    }
+}
@@ -10,6 +10,18 @@ gradlePlugin {
     }
 }
 
+repositories {
+    // Only for the marker of the Develocity plugin, used by the build scan integration
+    exclusiveContent {
+        forRepository {
+            gradlePluginPortal()
+        }
+        filter {
+            includeGroup("com.gradle.develocity")
+        }
+    }
+}
+
 dependencies {
     implementation("org.apache.commons:commons-compress:1.27.1")
     implementation("commons-io:commons-io:2.16.1")
@@ -25,8 +37,11 @@ dependencies {
     implementation("com.fasterxml.jackson.dataformat:jackson-dataformat-yaml:$jacksonVersion")
     implementation("org.jetbrains:annotations:24.1.0")
     implementation("org.apache.commons:commons-csv:1.11.0")
+    compileOnly("com.gradle.develocity:com.gradle.develocity.gradle.plugin:3.18.1")
 
     runtimeOnly("com.github.luben:zstd-jni:1.5.6-4")
+    // Debian packages have their control files compressed with xz
+    runtimeOnly("org.tukaani:xz:1.10")
 
     // Fixme: remove dependency from base image
     implementation("com.google.cloud.tools:jib-core:0.27.1")
@@ -47,6 +47,7 @@ import java.io.StringWriter;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -55,6 +56,8 @@ import java.util.stream.Stream;
 import static co.elastic.gradle.AssertContains.assertContains;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class DockerBaseImageBuildPluginIT extends TestkitIntegrationTest {
@@ -346,15 +349,19 @@ public class DockerBaseImageBuildPluginIT extends TestkitIntegrationTest {
         """);
         final BuildResult result = runGradleTask("dockerBaseImageLockfileAllWithEmulation");
             System.out.println(result.getOutput());
-        assertNotNull(result.task(":dockerBaseImageLockfile"), "Expected task dockerBaseImageLockfile to have run");
-        switch (Architecture.current()) {
-            case X86_64 -> {
-                assertNotNull(result.task(":dockerBaseImageLockfilearm64"), "Expected task dockerBaseImageLockfilearm64 to have run.");
-            }
-            case AARCH64 -> {
-                assertNotNull(result.task(":dockerBaseImageLockfileamd64"), "Expected task dockerBaseImageLockfileamd64 to have run.");
-            }
-        }
+        assertNotNull(
+                result.task(":dockerBaseImageLockfileAllWithEmulation"),
+                "Expected task dockerBaseImageLockfileAllWithEmulation to have run"
+        );
+        // All architectures are generated by the same task, the per architecture ones don't need to run
+        assertNull(result.task(":dockerBaseImageLockfile"), "Expected task dockerBaseImageLockfile not to have run");
+        final String lockfile = Files.readString(helper.projectDir().resolve("docker-base-image.lock"));
+        Arrays.stream(Architecture.values()).forEach(architecture ->
+                assertTrue(
+                        lockfile.contains(architecture.name() + ":"),
+                        "Expected the lockfile to have packages for " + architecture + " but it was:\n" + lockfile
+                )
+        );
 
     }
 
@@ -395,15 +402,19 @@ public class DockerBaseImageBuildPluginIT extends TestkitIntegrationTest {
         """);
         final BuildResult result = runGradleTask("dockerBaseImageLockfileAllWithEmulation");
         System.out.println(result.getOutput());
-        assertNotNull(result.task(":dockerBaseImageLockfile"), "Expected task dockerBaseImageLockfile to have run");
-        switch (Architecture.current()) {
-            case X86_64 -> {
-                assertNotNull(result.task(":dockerBaseImageLockfilearm64"), "Expected task dockerBaseImageLockfilearm64 to have run.");
-            }
-            case AARCH64 -> {
-                assertNotNull(result.task(":dockerBaseImageLockfileamd64"), "Expected task dockerBaseImageLockfileamd64 to have run.");
-            }
-        }
+        assertNotNull(
+                result.task(":dockerBaseImageLockfileAllWithEmulation"),
+                "Expected task dockerBaseImageLockfileAllWithEmulation to have run"
+        );
+        // All architectures are generated by the same task, the per architecture ones don't need to run
+        assertNull(result.task(":dockerBaseImageLockfile"), "Expected task dockerBaseImageLockfile not to have run");
+        final String lockfile = Files.readString(helper.projectDir().resolve("docker-base-image.lock"));
+        Arrays.stream(Architecture.values()).forEach(architecture ->
+                assertTrue(
+                        lockfile.contains(architecture.name() + ":"),
+                        "Expected the lockfile to have packages for " + architecture + " but it was:\n" + lockfile
+                )
+        );
 
     }
 
@@ -21,12 +21,14 @@ package co.elastic.gradle.dockerbase;
 import co.elastic.gradle.dockerbase.lockfile.BaseLockfile;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.ZstdCompression;
 import co.elastic.gradle.utils.docker.ContainerImageProviderTask;
 import co.elastic.gradle.utils.docker.instruction.*;
 import kotlin.Pair;
 import org.gradle.api.Action;
 import org.gradle.api.Project;
 import org.gradle.api.file.CopySpec;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.ProjectLayout;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.plugins.ExtensionAware;
@@ -61,6 +63,13 @@ public abstract class BaseImageExtension implements ExtensionAware {
 
         getMaxOutputSizeMB().convention(-1L);
 
+        getCompressionLevel().convention(ZstdCompression.DEFAULT_LEVEL);
+        getCompressionWorkers().convention(ZstdCompression.defaultWorkers(1));
+        getCompressionLongDistanceMatching().convention(false);
+
+        getStepCache().convention(false);
+        getBuildxExport().convention(false);
+
         getDockerTagPrefix().convention("gradle-docker-base");
 
         getDockerTagLocalPrefix().convention("local/gradle-docker-base");
@@ -86,6 +95,18 @@ public abstract class BaseImageExtension implements ExtensionAware {
 
     public abstract Property<Long> getMaxOutputSizeMB();
 
+    public abstract Property<Integer> getCompressionLevel();
+
+    public abstract Property<Integer> getCompressionWorkers();
+
+    public abstract Property<Boolean> getCompressionLongDistanceMatching();
+
+    public abstract Property<Boolean> getStepCache();
+
+    public abstract DirectoryProperty getStepCacheDirectory();
+
+    public abstract Property<Boolean> getBuildxExport();
+
     public abstract Property<String> getDockerTagPrefix();
 
     public abstract Property<String> getDockerTagLocalPrefix();
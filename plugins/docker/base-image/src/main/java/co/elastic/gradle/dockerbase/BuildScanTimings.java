@@ -0,0 +1,70 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import com.gradle.develocity.agent.gradle.DevelocityConfiguration;
+import com.gradle.develocity.agent.gradle.scan.BuildScanConfiguration;
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Adds phase timings to the build scan as custom values, when the Develocity plugin is applied to the build.
+ * The plugin is only a compile time dependency, so its classes are only referenced once it's known to be there.
+ */
+public class BuildScanTimings {
+
+    public static final String PROPERTY_NAME = "co.elastic.docker.timings.build-scan";
+
+    private static final Logger logger = Logging.getLogger(BuildScanTimings.class);
+
+    // A DevelocityConfiguration's build scan, kept as an Object so the class loads without the plugin
+    private final Object buildScan;
+
+    private BuildScanTimings(Object buildScan) {
+        this.buildScan = buildScan;
+    }
+
+    /**
+     * Resolves whether timings are added to the build scan, at configuration time.
+     *
+     * @return null when these are not enabled or the Develocity plugin is not applied
+     */
+    static BuildScanTimings resolve(Project project) {
+        if (!Boolean.parseBoolean(String.valueOf(project.findProperty(PROPERTY_NAME)))) {
+            return null;
+        }
+        final Object develocity = project.getRootProject().getExtensions().findByName("develocity");
+        if (develocity == null) {
+            logger.info("Not adding timings of {} to the build scan, the Develocity plugin is not applied", project.getPath());
+            return null;
+        }
+        return new BuildScanTimings(((DevelocityConfiguration) develocity).getBuildScan());
+    }
+
+    void publish(String taskPath, PhaseTimings timings) {
+        final var buildScan = (BuildScanConfiguration) this.buildScan;
+        for (PhaseTimings.Timing timing : timings.getTimings()) {
+            buildScan.value(taskPath + " " + timing.phase(), timing.durationMs() + "ms");
+            timing.counters().forEach((counter, value) ->
+                    buildScan.value(taskPath + " " + timing.phase() + " " + counter, String.valueOf(value))
+            );
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.ExtractCompressedTar;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.gradle.api.GradleException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * The metadata of an image archive in the format created by `docker save`.
+ * <p>
+ * The config is referenced from manifest.json, but both can come after the layers in the archive, so reading them
+ * means going through the whole archive.
+ */
+record DockerArchive(Path archive, List<String> layers, JsonNode config) {
+
+    private static final long MAX_METADATA_SIZE = 1024 * 1024;
+
+    static DockerArchive read(Path archive) throws IOException {
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final Map<String, byte[]> jsonEntries = new HashMap<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(
+                ExtractCompressedTar.uncompressedInputStream(archive))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                if (entry.isFile() && entry.getSize() <= MAX_METADATA_SIZE) {
+                    final byte[] content = tar.readAllBytes();
+                    if ((content.length > 0 && content[0] == '{') || entry.getName().equals("manifest.json")) {
+                        jsonEntries.put(entry.getName(), content);
+                    }
+                }
+            }
+        }
+        final byte[] manifest = jsonEntries.get("manifest.json");
+        if (manifest == null) {
+            throw new GradleException("The image archive " + archive + " has no manifest.json");
+        }
+        final JsonNode image = objectMapper.readTree(manifest).path(0);
+        final String configName = image.path("Config").asText();
+        final byte[] config = jsonEntries.get(configName);
+        if (config == null) {
+            throw new GradleException("The image archive " + archive + " has no config " + configName);
+        }
+        final List<String> layers = new ArrayList<>();
+        image.path("Layers").forEach(layer -> layers.add(layer.asText()));
+        return new DockerArchive(archive, List.copyOf(layers), objectMapper.readTree(config));
+    }
+
+    String getCreated() {
+        return config.path("created").asText();
+    }
+
+    List<String> getDiffIds() {
+        final List<String> diffIds = new ArrayList<>();
+        config.path("rootfs").path("diff_ids").forEach(diffId -> diffIds.add(diffId.asText()));
+        return diffIds;
+    }
+
+    /**
+     * Writes the archive without the first layers, for `docker load` to use the ones the daemon already has.
+     * The manifest still references them, and since the daemon has a layer with the same chain, it won't look for them.
+     */
+    void writeWithoutLayers(int skippedLayers, OutputStream out) throws IOException {
+        final Set<String> skipped = new HashSet<>(layers.subList(0, skippedLayers));
+        // The same layer could appear again later on, and would still be needed then
+        skipped.removeAll(layers.subList(skippedLayers, layers.size()));
+        try (TarArchiveInputStream in = new TarArchiveInputStream(ExtractCompressedTar.uncompressedInputStream(archive));
+             TarArchiveOutputStream tar = new TarArchiveOutputStream(out)) {
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            TarArchiveEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                if (skipped.contains(entry.getName())) {
+                    continue;
+                }
+                tar.putArchiveEntry(entry);
+                if (entry.isFile()) {
+                    IOUtils.copy(in, tar);
+                }
+                tar.closeArchiveEntry();
+            }
+        }
+    }
+}
@@ -27,8 +27,8 @@ import co.elastic.gradle.lifecycle.LifecyclePlugin;
 import co.elastic.gradle.lifecycle.MultiArchLifecyclePlugin;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.GradleUtils;
-import co.elastic.gradle.utils.OS;
 import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.docker.DockerDaemonService;
 import co.elastic.gradle.utils.docker.InstructionCopySpecMapper;
 import co.elastic.gradle.utils.docker.UnchangingContainerReference;
 import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
@@ -65,6 +65,7 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
     public static final String BUILD_TASK_NAME = "dockerBaseImageBuild";
     public static final String LOCAL_IMPORT_TASK_NAME = "dockerBaseImageLocalImport";
     public static final String LOCKFILE_TASK_NAME = "dockerBaseImageLockfile";
+    public static final String ALL_WITH_EMULATION_SUFFIX = "AllWithEmulation";
 
     @Override
     public void apply(@NotNull Project target) {
@@ -81,6 +82,45 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
 
         registerPullTask(target, extension);
 
+        final Provider<DockerDaemonService> dockerDaemonService = DockerDaemonService.registerIfAbsent(target);
+        target.getTasks().withType(DockerBaseImageBuildTask.class).configureEach(task -> {
+            task.getDockerDaemonService().set(dockerDaemonService);
+            task.usesService(dockerDaemonService);
+        });
+        target.getTasks().withType(DockerLockfileTask.class).configureEach(task -> {
+            task.getDockerDaemonService().set(dockerDaemonService);
+            task.usesService(dockerDaemonService);
+        });
+        final Provider<RegistryManifestService> registryManifestService = RegistryManifestService.registerIfAbsent(target);
+        target.getTasks().withType(DockerLockfileTask.class).configureEach(task -> {
+            task.getRegistryManifestService().set(registryManifestService);
+            task.usesService(registryManifestService);
+        });
+        final Provider<OsPackageStoreService> osPackageStore = OsPackageStoreService.registerIfAbsent(target);
+        target.getTasks().withType(DockerBaseImageBuildTask.class).configureEach(task -> {
+            task.getOsPackageStore().set(osPackageStore);
+            task.usesService(osPackageStore);
+        });
+        target.getTasks().withType(DockerLockfileTask.class).configureEach(task -> {
+            task.getOsPackageStore().set(osPackageStore);
+            task.usesService(osPackageStore);
+        });
+        target.getTasks().withType(DockerBaseImageBuildTask.class).configureEach(task ->
+                task.getBuildScanTimings().set(BuildScanTimings.resolve(target))
+        );
+        target.getTasks().withType(DockerLockfileTask.class).configureEach(task ->
+                task.getBuildScanTimings().set(BuildScanTimings.resolve(target))
+        );
+        target.getTasks().withType(DockerMultiArchLockfileTask.class).configureEach(task -> {
+            task.usesService(dockerDaemonService);
+            task.usesService(registryManifestService);
+            task.usesService(osPackageStore);
+        });
+        target.getTasks().withType(DockerLocalImportArchiveTask.class).configureEach(task -> {
+            task.getDockerDaemonService().set(dockerDaemonService);
+            task.usesService(dockerDaemonService);
+        });
+
         final Configuration dockerEphemeralConfiguration = target.getConfigurations().create("dockerEphemeral");
 
         Arrays.stream(Architecture.values()).forEach( arch -> {
@@ -95,6 +135,12 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
                         task.getDockerEphemeralMount().set(extension.getDockerEphemeralMount());
                         task.getInputInstructions().set(extension.getInstructions());
                         task.getMaxOutputSizeMB().set(extension.getMaxOutputSizeMB());
+                        task.getCompressionLevel().set(extension.getCompressionLevel());
+                        task.getCompressionWorkers().set(extension.getCompressionWorkers());
+                        task.getCompressionLongDistanceMatching().set(extension.getCompressionLongDistanceMatching());
+                        task.getStepCache().set(extension.getStepCache());
+                        task.getStepCacheDirectory().set(extension.getStepCacheDirectory());
+                        task.getBuildxExport().set(extension.getBuildxExport());
                         task.getInputInstructions().set(
                                 instructionsFilteredForArch(target, extension, arch)
                         );
@@ -137,23 +183,31 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
                 }
         );
 
-        target.getTasks().register(LOCKFILE_TASK_NAME + "AllWithEmulation",  task -> {
-            task.dependsOn(target.getTasks().withType(DockerLockfileTask.class));
-        });
+        target.getTasks().register(
+                LOCKFILE_TASK_NAME + ALL_WITH_EMULATION_SUFFIX,
+                DockerMultiArchLockfileTask.class,
+                task -> {
+                    task.setGroup("containers");
+                    task.setDescription("Generates a new lockfile for all architectures, using emulation for the ones not matching the host");
+                    task.getLockFileLocation().set(extension.getLockFileLocation());
+                    Arrays.stream(Architecture.values()).forEach(arch -> {
+                        final LockfileArchitecture architecture = task.addArchitecture(arch);
+                        architecture.getInputInstructions().set(instructionsFilteredForArch(target, extension, arch));
+                        configureLockfile(architecture, extension, dockerEphemeralConfiguration, osPackageConfigurations);
+                        architecture.getDockerDaemonService().set(dockerDaemonService);
+                        architecture.getRegistryManifestService().set(registryManifestService);
+                        architecture.getOsPackageStore().set(osPackageStore);
+                        architecture.getBuildScanTimings().set(BuildScanTimings.resolve(target));
+                    });
+                    task.onlyIf(runningOnSupportedArchitecture(extension));
+                }
+        );
 
         target.getTasks().withType(DockerLockfileTask.class).configureEach(task -> {
                     task.setGroup("containers");
                     task.setDescription("Generates a new lockfile with the latest version of all packages");
-                    task.getOSDistribution().set(extension.getOSDistribution());
                     task.getLockFileLocation().set(extension.getLockFileLocation());
-                    task.getDockerEphemeralMount().set(extension.getDockerEphemeralMount());
-                    task.getOsPackageRepository().set(extension.getOsPackageRepository());
-                    task.getMirrorRepositories().set(extension.getMirrorRepositories());
-                    task.getDockerEphemeralConfiguration().set(dockerEphemeralConfiguration);
-                    // Map the configuration to the architecture of the task
-                    task.getOSPackagesConfiguration().set(task.getArchitecture().map(osPackageConfigurations::get));
-                    // hard code Linux here, because we are using it inside a docker container
-                    task.getJFrogCli().set(JFrogPlugin.getExecutable(target, OS.LINUX));
+                    configureLockfile(task, extension, dockerEphemeralConfiguration, osPackageConfigurations);
                     task.onlyIf(runningOnSupportedArchitecture(extension));
                 }
         );
@@ -171,7 +225,8 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
             final String separator = target.getPath().endsWith(":") ? "" : ":";
             final String lockfileTaskPath = target.getPath() + separator + LOCKFILE_TASK_NAME;
             final String buildTaskPath = target.getPath() + separator + BUILD_TASK_NAME;
-            if (graph.hasTask(lockfileTaskPath) && graph.hasTask(buildTaskPath)
+            if ((graph.hasTask(lockfileTaskPath) || graph.hasTask(lockfileTaskPath + ALL_WITH_EMULATION_SUFFIX)) &&
+                graph.hasTask(buildTaskPath)
             ) {
                 throw new GradleException("Generating the lockfile and building an image using it in the same invocation" +
                                           " is not supported. The lockfile should be generated and checked in. It can be " +
@@ -198,6 +253,12 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
                                 task.mustRunAfter(otherProjectPath + ":" + LOCKFILE_TASK_NAME + dockerNameIfNotCurrent(arch));
                             });
                         });
+                        target.getTasks().withType(DockerMultiArchLockfileTask.class).configureEach(task -> {
+                            Arrays.stream(Architecture.values()).forEach(arch ->
+                                    task.dependsOn(otherProjectPath + ":" + LOCAL_IMPORT_TASK_NAME + dockerNameIfNotCurrent(arch))
+                            );
+                            task.mustRunAfter(otherProjectPath + ":" + LOCKFILE_TASK_NAME + ALL_WITH_EMULATION_SUFFIX);
+                        });
                     });
 
             // assign copy specs to the build tasks to correctly evaluate build avoidance
@@ -211,6 +272,9 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
                             extension.getInstructions(),
                             ((ImageBuildable) task).getRootCopySpec())
             );
+            target.getTasks().withType(DockerMultiArchLockfileTask.class).configureEach(task ->
+                    InstructionCopySpecMapper.assignCopySpecs(extension.getInstructions(), task.getRootCopySpec())
+            );
 
             if (extension.getOsPackageRepository().isPresent()) {
                 final URL repoUrl = extension.getOsPackageRepository().get();
@@ -253,6 +317,21 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
         });
     }
 
+    private static void configureLockfile(
+            LockfileBuildable buildable,
+            BaseImageExtension extension,
+            Configuration dockerEphemeralConfiguration,
+            Map<Architecture, Configuration> osPackageConfigurations
+    ) {
+        buildable.getOSDistribution().set(extension.getOSDistribution());
+        buildable.getDockerEphemeralMount().set(extension.getDockerEphemeralMount());
+        buildable.getOsPackageRepository().set(extension.getOsPackageRepository());
+        buildable.getMirrorRepositories().set(extension.getMirrorRepositories());
+        buildable.getDockerEphemeralConfiguration().set(dockerEphemeralConfiguration);
+        // Map the configuration to the architecture of the task
+        buildable.getOSPackagesConfiguration().set(buildable.getArchitecture().map(osPackageConfigurations::get));
+    }
+
     protected static Provider<List<ContainerImageBuildInstruction>> instructionsFilteredForArch(Project target, BaseImageExtension extension, Architecture arch) {
         System.out.println(extension.getInstructions());
         return target.provider(() -> {
@@ -293,6 +372,10 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
     }
 
     protected static void addPackageAsDependency(Project target, BaseImageExtension extension, Map.Entry<Architecture, Configuration> packageConfiguration, UnchangingPackage pkg) {
+        if (pkg.name().startsWith(RepositoryIndex.META_PREFIX) && extension.getOSDistribution().get() != OSDistribution.CENTOS) {
+            // The repository metadata is generated from the packages, see RepositoryIndex
+            return;
+        }
         final String type = extension.getOSDistribution().get()
                 .name().toLowerCase(Locale.ROOT);
         final Map<String, String> dependencyNotation = Map.of(
@@ -313,9 +396,9 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
                     case WOLFI -> pkg.version();
                 },
                 "ext", switch (extension.getOSDistribution().get()) {
-                    case DEBIAN, UBUNTU -> pkg.name().startsWith("__META__") ? "gz" : "deb";
-                    case CENTOS -> pkg.name().startsWith("__META__") ? "tar" : "rpm";
-                    case WOLFI -> pkg.name().startsWith("__META__") ? "gz" : "apk";
+                    case DEBIAN, UBUNTU -> "deb";
+                    case CENTOS -> pkg.name().startsWith(RepositoryIndex.META_PREFIX) ? "tar" : "rpm";
+                    case WOLFI -> "apk";
                 }
         );
 
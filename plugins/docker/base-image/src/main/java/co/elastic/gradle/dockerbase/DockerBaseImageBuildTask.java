@@ -20,8 +20,11 @@ package co.elastic.gradle.dockerbase;
 
 import co.elastic.gradle.dockerbase.lockfile.BaseLockfile;
 import co.elastic.gradle.dockerbase.lockfile.Packages;
+import co.elastic.gradle.utils.ArchiveSizeLimit;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.ZstdCompression;
+import co.elastic.gradle.utils.docker.DockerDaemonService;
 import co.elastic.gradle.utils.docker.DockerPluginConventions;
 import co.elastic.gradle.utils.docker.DockerUtils;
 import co.elastic.gradle.utils.docker.GradleCacheUtilities;
@@ -29,7 +32,7 @@ import co.elastic.gradle.utils.docker.UnchangingContainerReference;
 import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
 import co.elastic.gradle.utils.docker.instruction.From;
 import co.elastic.gradle.utils.docker.instruction.Install;
-import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
 import org.gradle.api.file.DirectoryProperty;
@@ -49,6 +52,7 @@ import org.jetbrains.annotations.NotNull;
 import javax.inject.Inject;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -83,7 +87,15 @@ public abstract class DockerBaseImageBuildTask extends DefaultTask implements Im
         getCreatedAtFile().convention(
                 getProjectLayout().getBuildDirectory().file(baseFileName + ".createdAt")
         );
+        getTimingsFile().convention(
+                getProjectLayout().getBuildDirectory().file(baseFileName + ".timings.json")
+        );
         getIsolateFromExternalRepos().convention(true);
+        getStepCache().convention(false);
+        getBuildxExport().convention(false);
+        getCompressionLevel().convention(ZstdCompression.DEFAULT_LEVEL);
+        getCompressionWorkers().convention(ZstdCompression.defaultWorkers(1));
+        getCompressionLongDistanceMatching().convention(false);
 
         rootCopySpec = getProject().getObjects().newInstance(DefaultCopySpec.class);
         rootCopySpec.addChildSpecListener(DockerPluginConventions.mapCopySpecToTaskInputs(this));
@@ -240,6 +252,24 @@ public abstract class DockerBaseImageBuildTask extends DefaultTask implements Im
     @Input
     public abstract Property<Long> getMaxOutputSizeMB();
 
+    /**
+     * The zstd compression level of the image archive. Only affects the size of the archive, not its content.
+     */
+    @Internal
+    public abstract Property<Integer> getCompressionLevel();
+
+    /**
+     * The number of threads used to compress the image archive.
+     */
+    @Internal
+    public abstract Property<Integer> getCompressionWorkers();
+
+    /**
+     * Use zstd long distance matching to compress the image archive, which helps with large images.
+     */
+    @Internal
+    public abstract Property<Boolean> getCompressionLongDistanceMatching();
+
     @Internal
     @Override
     public abstract DirectoryProperty getWorkingDirectory();
@@ -252,55 +282,172 @@ public abstract class DockerBaseImageBuildTask extends DefaultTask implements Im
     @Input
     public abstract Property<Boolean> getIsolateFromExternalRepos();
 
-    private void buildDockerImage() {
-        DockerDaemonActions daemonActions = getObjectFactory().newInstance(DockerDaemonActions.class, this);
+    /**
+     * Re-use the steps of previous builds of the image up to the first one that changed, instead of building with
+     * --no-cache.
+     */
+    @Override
+    @Input
+    public abstract Property<Boolean> getStepCache();
+
+    /**
+     * Local directory to export the step cache to, and import it from, so it outlives the daemon's own cache.
+     */
+    @Override
+    @Internal
+    public abstract DirectoryProperty getStepCacheDirectory();
+
+    @Override
+    @Internal
+    public abstract Property<DockerDaemonService> getDockerDaemonService();
+
+    @Override
+    @Internal
+    public abstract Property<OsPackageStoreService> getOsPackageStore();
+
+    /**
+     * Where to write how long each phase of the build took, as JSON. Not an output, as it describes a specific run of
+     * the task.
+     */
+    @Internal
+    public abstract RegularFileProperty getTimingsFile();
+
+    /**
+     * Adds the timings to the build scan too, resolved when the task is configured. Not set unless enabled.
+     */
+    @Internal
+    public abstract Property<BuildScanTimings> getBuildScanTimings();
+
+    /**
+     * Build with buildx and export the image straight to the archive, instead of building into the daemon and then
+     * saving it.
+     */
+    @Internal
+    public abstract Property<Boolean> getBuildxExport();
+
+    private void buildDockerImage(DockerDaemonActions daemonActions) {
+        final PhaseTimings timings = daemonActions.getTimings();
         DockerUtils dockerUtils = new DockerUtils(getExecOperations());
+        if (getBuildxExport().get()) {
+            exportDockerImage(daemonActions);
+            return;
+        }
         try {
             UUID uuid = daemonActions.build();
 
-            try (BufferedOutputStream createAtFileOut = new BufferedOutputStream(
-                    Files.newOutputStream(RegularFileUtils.toPath(getCreatedAtFile())))
-            ) {
-                int imageInspect = dockerUtils.exec(spec -> {
-                    spec.setWorkingDir(getWorkingDirectory());
-                    spec.setStandardOutput(createAtFileOut);
-                    spec.commandLine("docker", "image", "inspect", "--format", "{{.Created}}", uuid);
-                    spec.setIgnoreExitValue(true);
-                }).getExitValue();
-                if (imageInspect != 0) {
-                    throw new GradleException(
-                            "Failed to inspect docker image, see the docker build log in the task output"
-                    );
+            timings.time("inspect", () -> {
+                try (BufferedOutputStream createAtFileOut = new BufferedOutputStream(
+                        Files.newOutputStream(RegularFileUtils.toPath(getCreatedAtFile())))
+                ) {
+                    int imageInspect = dockerUtils.exec(spec -> {
+                        spec.setWorkingDir(getWorkingDirectory());
+                        spec.setStandardOutput(createAtFileOut);
+                        spec.commandLine("docker", "image", "inspect", "--format", "{{.Created}}", uuid);
+                        spec.setIgnoreExitValue(true);
+                    }).getExitValue();
+                    if (imageInspect != 0) {
+                        throw new GradleException(
+                                "Failed to inspect docker image, see the docker build log in the task output"
+                        );
+                    }
                 }
-            }
+            });
 
             final Path imageArchive = RegularFileUtils.toPath(getImageArchive());
-            try (ZstdCompressorOutputStream compressedOut = new ZstdCompressorOutputStream(
-                    new BufferedOutputStream(Files.newOutputStream(imageArchive)))) {
-                ExecResult imageSave = dockerUtils.exec(spec -> {
-                    spec.setStandardOutput(compressedOut);
-                    spec.setCommandLine("docker", "save", uuid.toString());
-                    spec.setIgnoreExitValue(true);
-                });
-                if (imageSave.getExitValue() != 0) {
-                    throw new GradleException(
-                            "Failed to save docker image, see the docker build log in the task output"
+            final ArchiveSizeLimit sizeLimit = new ArchiveSizeLimit(getPath(), getMaxOutputSizeMB().get());
+            timings.time("save-and-compress", () -> {
+                try (CountingOutputStream compressedOut = new CountingOutputStream(openImageArchive(imageArchive, sizeLimit))) {
+                    ExecResult imageSave = getDockerDaemonService().get().run(
+                            DockerDaemonService.Operation.SAVE,
+                            () -> dockerUtils.exec(spec -> {
+                                spec.setStandardOutput(compressedOut);
+                                spec.setCommandLine("docker", "save", uuid.toString());
+                                spec.setIgnoreExitValue(true);
+                            })
                     );
+                    timings.count("save-and-compress", "uncompressed-bytes", compressedOut.getByteCount());
+                    if (imageSave.getExitValue() != 0) {
+                        throw new GradleException(
+                                "Failed to save docker image, see the docker build log in the task output"
+                        );
+                    }
                 }
-            }
+            });
 
-            dockerUtils.exec(spec -> {
-                spec.commandLine("docker", "image", "rm", "-f", uuid);
-                spec.setIgnoreExitValue(false);
+            timings.time("remove-image", () -> {
+                dockerUtils.exec(spec -> {
+                    spec.commandLine("docker", "image", "rm", "-f", uuid);
+                    spec.setIgnoreExitValue(false);
+                });
             });
+            sizeLimit.assertNotExceeded();
         } catch (IOException e) {
             throw new GradleException("Error building docker base image", e);
         }
     }
 
+    /**
+     * Opens the archive to write the output of `docker save` to, failing as soon as it exceeds the maximum size.
+     */
+    private OutputStream openImageArchive(Path imageArchive, ArchiveSizeLimit sizeLimit) throws IOException {
+        final ZstdCompression compression = new ZstdCompression(
+                getCompressionLevel().get(),
+                getCompressionWorkers().get(),
+                getCompressionLongDistanceMatching().get()
+        );
+        return sizeLimit.forProcessOutput(sizeLimit.trackEntries(compression.compress(
+                sizeLimit.limit(new BufferedOutputStream(Files.newOutputStream(imageArchive)))
+        )));
+    }
+
+    /**
+     * Builds the image straight into the archive, skipping the round trip through the daemon's image store.
+     */
+    private void exportDockerImage(DockerDaemonActions daemonActions) {
+        final Path imageArchive = RegularFileUtils.toPath(getImageArchive());
+        final ArchiveSizeLimit sizeLimit = new ArchiveSizeLimit(getPath(), getMaxOutputSizeMB().get());
+        try {
+            try (OutputStream compressedOut = openImageArchive(imageArchive, sizeLimit)) {
+                daemonActions.buildAndExport(compressedOut);
+            }
+            sizeLimit.assertNotExceeded();
+            final String created = daemonActions.getTimings().time(
+                    "read-created", () -> DockerArchive.read(imageArchive).getCreated()
+            );
+            Files.writeString(RegularFileUtils.toPath(getCreatedAtFile()), created);
+        } catch (IOException e) {
+            throw new GradleException("Error building docker base image", e);
+        }
+    }
+
+    private void writeTimings(PhaseTimings timings) {
+        try {
+            final Path imageArchive = RegularFileUtils.toPath(getImageArchive());
+            if (Files.exists(imageArchive)) {
+                // With buildx the image is compressed while it's being built, so there's no separate phase for it
+                timings.count(
+                        getBuildxExport().get() ? "build" : "save-and-compress",
+                        "compressed-bytes",
+                        Files.size(imageArchive)
+                );
+            }
+            timings.write(getPath(), RegularFileUtils.toPath(getTimingsFile()));
+        } catch (IOException e) {
+            getLogger().warn("Failed to write the timings of {}", getPath(), e);
+        }
+        if (getBuildScanTimings().isPresent()) {
+            getBuildScanTimings().get().publish(getPath(), timings);
+        }
+    }
+
     @TaskAction
     protected void taskAction() {
-        buildDockerImage();
+        final DockerDaemonActions daemonActions = getObjectFactory().newInstance(DockerDaemonActions.class, this);
+        try {
+            buildDockerImage(daemonActions);
+        } finally {
+            writeTimings(daemonActions.getTimings());
+        }
         final Long maxSizeMB = getMaxOutputSizeMB().get();
         if (maxSizeMB > 0) {
             try {
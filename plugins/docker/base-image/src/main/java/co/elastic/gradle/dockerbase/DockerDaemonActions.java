@@ -19,22 +19,31 @@
 
 package co.elastic.gradle.dockerbase;
 
-import co.elastic.gradle.utils.Architecture;
+import co.elastic.gradle.utils.LinkedFileSync;
 import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.docker.DockerDaemonService;
 import co.elastic.gradle.utils.docker.DockerUtils;
 import co.elastic.gradle.utils.docker.instruction.*;
 import org.gradle.api.GradleException;
 import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
 import org.gradle.process.ExecOperations;
 
 import javax.inject.Inject;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -42,11 +51,16 @@ import java.util.stream.Stream;
 
 public abstract class DockerDaemonActions {
 
+    private static final Logger logger = Logging.getLogger(DockerDaemonActions.class);
+
     private final DockerUtils dockerUtils;
     private final ImageBuildable buildable;
     private final Path workingDir;
     private final UUID uuid;
+    private final PhaseTimings timings = new PhaseTimings();
     private String user;
+    private String stepCacheKey;
+    private boolean contextPrepared;
 
     @Inject
     public DockerDaemonActions(ImageBuildable buildable) {
@@ -64,15 +78,17 @@ public abstract class DockerDaemonActions {
 
 
     public void checkVersion() {
-        ByteArrayOutputStream commandOutput = new ByteArrayOutputStream();
-        dockerUtils.exec(spec -> {
-            spec.setStandardOutput(commandOutput);
-            spec.setEnvironment(Collections.emptyMap());
-            spec.commandLine("docker", "version", "--format='{{.Server.Version}}'");
+        String dockerVersion = buildable.getDockerDaemonService().get().probe("server-version", () -> {
+            ByteArrayOutputStream commandOutput = new ByteArrayOutputStream();
+            dockerUtils.exec(spec -> {
+                spec.setStandardOutput(commandOutput);
+                spec.setEnvironment(Collections.emptyMap());
+                spec.commandLine("docker", "version", "--format='{{.Server.Version}}'");
+            });
+            return commandOutput.toString(StandardCharsets.UTF_8)
+                    .trim()
+                    .replaceAll("'", "");
         });
-        String dockerVersion = commandOutput.toString(StandardCharsets.UTF_8)
-                .trim()
-                .replaceAll("'", "");
         int dockerMajorVersion = Integer.parseInt(dockerVersion.split("\\.")[0]);
         if (dockerMajorVersion < 19) {
             throw new IllegalStateException("Docker daemon version must be 19 and above. Currently " + dockerVersion);
@@ -88,7 +104,7 @@ public abstract class DockerDaemonActions {
                "# syntax = docker/dockerfile:1.3\n" +
                "# Internal UUID: " + uuid + "\n" +
                "# Building " + buildable + "\n\n" +
-               buildable.getActualInstructions().stream()
+               mergeConsecutiveInstalls(buildable.getActualInstructions()).stream()
                        .flatMap(this::convertInstallToRun)
                        .map(this::instructionAsDockerFileInstruction)
                        .collect(Collectors.joining("\n"));
@@ -99,10 +115,9 @@ public abstract class DockerDaemonActions {
         final boolean requiresCleanLayers = buildable.getIsolateFromExternalRepos().get();
         return new Run(
                 switch (distribution) {
+                    // When isolated from external repos, the repository metadata is generated before the build, see
+                    // RepositoryIndex
                     case UBUNTU, DEBIAN -> Stream.of(
-                            Stream.of(
-                                    "cp /var/packages-from-gradle/__META__Packages* /var/packages-from-gradle/Packages.gz"
-                            ).filter(s -> requiresCleanLayers),
                             Stream.of(
                                     "rm -f /etc/apt/apt.conf.d/docker-clean",
                                     """
@@ -116,10 +131,6 @@ public abstract class DockerDaemonActions {
                             ).filter(s -> requiresCleanLayers)
                     ).flatMap(s -> s).collect(Collectors.toList());
                     case CENTOS -> Stream.of(
-                            Stream.of(
-                                    "cd /var/packages-from-gradle/",
-                                    "tar -xf __META__repodata*"
-                            ).filter(s -> requiresCleanLayers),
                             Stream.of(command),
                             Stream.of(
                                     "yum clean all",
@@ -128,32 +139,45 @@ public abstract class DockerDaemonActions {
                     ).flatMap(
                             Function.identity()
                     ).collect(Collectors.toList());
-                    case WOLFI -> {
-                        final String archDir = Architecture.current().name().toLowerCase(Locale.ROOT);
-                        yield Stream.of(
-                                Stream.of("cd /var/packages-from-gradle/ && " +
-                                          "mkdir '" + archDir + "' && " +
-                                          "mv *.apk '" + archDir + "' &&" +
-                                          "mv __META__Packages* '" + archDir + "/APKINDEX.tar.gz' &&" +
-                                          "apk update --allow-untrusted").filter(s -> requiresCleanLayers),
-                                // When building the lock-file we do NOT allow untrusted sources
-                                Stream.of(command.replace("apk add", "apk add --no-cache")).filter(s -> !requiresCleanLayers),
-                                // When we're building the actual image, everything is coming from Gradle, so it's safe
-                                // and already checked (as long as dependency verification is enabled)
-                                // The package db itself is not signed, so we need to allow untrusted
-                                Stream.of(command.replace("apk add", "apk add --allow-untrusted")).filter(s -> requiresCleanLayers)
-                        ).flatMap(
-                                Function.identity()
-                        ).collect(Collectors.toList());
-                    }
+                    case WOLFI -> Stream.of(
+                            // When building the lock-file we do NOT allow untrusted sources
+                            Stream.of(command.replace("apk add", "apk add --no-cache")).filter(s -> !requiresCleanLayers),
+                            // When we're building the actual image, everything is coming from Gradle, so it's safe
+                            // and already checked (as long as dependency verification is enabled)
+                            // The package db itself is not signed, so we need to allow untrusted
+                            Stream.of(command.replace("apk add", "apk add --allow-untrusted")).filter(s -> requiresCleanLayers)
+                    ).flatMap(
+                            Function.identity()
+                    ).collect(Collectors.toList());
                 }
         );
     }
 
+    /**
+     * Merges adjacent install instructions so the packages are installed in a single transaction and layer, rather
+     * than updating the package index and cleaning up after each of them.
+     */
+    public static List<ContainerImageBuildInstruction> mergeConsecutiveInstalls(List<ContainerImageBuildInstruction> instructions) {
+        final List<ContainerImageBuildInstruction> result = new ArrayList<>(instructions.size());
+        for (ContainerImageBuildInstruction instruction : instructions) {
+            if (instruction instanceof Install install &&
+                !result.isEmpty() &&
+                result.get(result.size() - 1) instanceof Install previous
+            ) {
+                final LinkedHashSet<String> packages = new LinkedHashSet<>(previous.getPackages());
+                packages.addAll(install.getPackages());
+                result.set(result.size() - 1, new Install(List.copyOf(packages)));
+            } else {
+                result.add(instruction);
+            }
+        }
+        return result;
+    }
+
     private Stream<? extends ContainerImageBuildInstruction> convertInstallToRun(ContainerImageBuildInstruction instruction) {
         if (instruction instanceof Install install) {
             final String packagesToInstall = install.getPackages().stream()
-                    .filter(p -> !p.contains("__META__"))
+                    .filter(p -> !p.contains(RepositoryIndex.META_PREFIX))
                     .collect(Collectors.joining(" "));
             return Stream.of(
                     // Install instructions need to be run with root
@@ -190,8 +214,13 @@ public abstract class DockerDaemonActions {
                         return "--mount=type=bind," + entry.getKey() +
                                ",source=" + workingDir.relativize(entry.getValue());
                     }).collect(Collectors.joining(" "));
+            // The content of the mounts is not part of Docker's cache key, so it's added as a no-op command.
+            // Every RUN sees all the mounts, so they all share the same key.
+            final List<String> commands = stepCacheKey == null ?
+                    run.getCommands() :
+                    Stream.concat(Stream.of(": 'cache-key " + stepCacheKey + "'"), run.getCommands().stream()).toList();
             return "RUN " + mountOptions + "\\\n " +
-                   String.join(" && \\ \n\t", run.getCommands());
+                   String.join(" && \\ \n\t", commands);
         } else if (instruction instanceof RepoConfigRun repoConfigRun) {
             if (buildable.getIsolateFromExternalRepos().get()) {
                 return "";
@@ -256,11 +285,18 @@ public abstract class DockerDaemonActions {
                         case WOLFI -> getRepositoryEphemeralDir().resolve("repositories");
                     }
             );
-            result.put("readwrite,target=/var/packages-from-gradle", getOSPackagesDir());
+            result.put("readonly,target=/var/packages-from-gradle", getOSPackagesDir());
         }
         return result;
     }
 
+    /**
+     * Timings of the phases of the build, tasks can add their own phases to it.
+     */
+    public PhaseTimings getTimings() {
+        return timings;
+    }
+
     public Path getWorkingDir() {
         return workingDir;
     }
@@ -273,6 +309,16 @@ public abstract class DockerDaemonActions {
         return workingDir.resolve("ephemeral/packages");
     }
 
+    /**
+     * Where the packages are within the repository, apk expects them in a directory named after the architecture.
+     */
+    private Path getRepositoryPackagesDir() {
+        return switch (buildable.getOSDistribution().get()) {
+            case DEBIAN, UBUNTU, CENTOS -> getOSPackagesDir();
+            case WOLFI -> getOSPackagesDir().resolve(buildable.getArchitecture().get().name().toLowerCase(Locale.ROOT));
+        };
+    }
+
     public Path getRepositoryEphemeralDir() {
         return workingDir.resolve("ephemeral/repos");
     }
@@ -319,11 +365,89 @@ public abstract class DockerDaemonActions {
 
     }
 
+    /**
+     * Read the default user from the image config. References pinned to a digest can't change, so for those the result
+     * is cached on disk.
+     */
+    private String getBaseImageUser(String baseImage) throws IOException {
+        final Optional<Path> cacheFile = Optional.of(baseImage)
+                .filter(reference -> reference.contains("@sha256:"))
+                .map(reference -> reference.substring(reference.indexOf("@sha256:") + "@sha256:".length()))
+                .map(hash -> getImageUserCacheDir().resolve(hash));
+        if (cacheFile.isPresent() && Files.exists(cacheFile.get())) {
+            return Files.readString(cacheFile.get()).trim();
+        }
+
+        final String imageUser = inspectUser(baseImage).orElseGet(() -> {
+            dockerUtils.pull(baseImage);
+            return inspectUser(baseImage).orElseThrow(() ->
+                    new GradleException("Failed to inspect base image " + baseImage)
+            );
+        });
+        if (cacheFile.isPresent()) {
+            Files.createDirectories(cacheFile.get().getParent());
+            final Path tmp = Files.createTempFile(cacheFile.get().getParent(), ".", ".tmp");
+            Files.writeString(tmp, imageUser);
+            Files.move(tmp, cacheFile.get(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return imageUser;
+    }
+
+    private Optional<String> inspectUser(String image) {
+        final ByteArrayOutputStream inspectOut = new ByteArrayOutputStream();
+        final int exitValue = dockerUtils.exec(execSpec -> {
+            execSpec.setStandardOutput(inspectOut);
+            execSpec.setErrorOutput(new ByteArrayOutputStream());
+            execSpec.commandLine("docker", "image", "inspect", "--format", "{{.Config.User}}", image);
+            execSpec.setIgnoreExitValue(true);
+        }).getExitValue();
+        if (exitValue != 0) {
+            return Optional.empty();
+        }
+        final String configUser = inspectOut.toString(StandardCharsets.UTF_8).trim();
+        // An image without a configured user runs as root
+        return Optional.of(configUser.isEmpty() ? "root" : configUser);
+    }
+
+    private static Path getImageUserCacheDir() {
+        return Paths.get(System.getProperty("user.home")).resolve(".gradle-docker-base/image-users");
+    }
+
     public UUID build() throws IOException {
-        checkVersion();
+        return build(null);
+    }
+
+    /**
+     * Builds the image with buildx and writes it to the output as a docker archive, as `docker save` would, without
+     * storing it in the daemon.
+     */
+    public UUID buildAndExport(OutputStream imageArchive) throws IOException {
+        return build(Objects.requireNonNull(imageArchive));
+    }
+
+    /**
+     * Stages the build context, the ephemeral files and the OS packages. This resolves the copy spec and the
+     * configurations of the buildable, so it needs to run on the task thread. Callers that build on other threads
+     * call it before handing off, otherwise the build does it.
+     */
+    public void prepareContext() throws IOException {
         Files.createDirectories(workingDir);
-        synchronizeFiles();
-        generateEphemeralRepositories();
+        timings.time("context-sync", () -> {
+            synchronizeFiles();
+            generateEphemeralRepositories();
+        });
+        contextPrepared = true;
+    }
+
+    private UUID build(OutputStream exportTo) throws IOException {
+        timings.time("docker-version", this::checkVersion);
+        if (!contextPrepared) {
+            prepareContext();
+        }
+        final boolean useStepCache = isStepCacheSafe();
+        if (useStepCache) {
+            stepCacheKey = timings.time("step-cache-key", this::computeStepCacheKey);
+        }
 
         {
             final String baseImage = buildable.getActualInstructions().stream()
@@ -331,12 +455,7 @@ public abstract class DockerDaemonActions {
                     .map(each -> ((FromImageReference) each).getReference().get())
                     .findFirst()
                     .orElseThrow(() -> new GradleException("A base image is not configured "));
-            final ByteArrayOutputStream whoAmIOut = new ByteArrayOutputStream();
-            dockerUtils.exec(execSpec -> {
-                execSpec.setStandardOutput(whoAmIOut);
-                execSpec.commandLine("docker", "run", "--rm", "--entrypoint", "/bin/sh", baseImage, "-c", "'whoami'");
-            });
-            user = whoAmIOut.toString().trim();
+            user = timings.time("base-image-user", () -> getBaseImageUser(baseImage));
         }
 
         Path dockerFile = workingDir.resolve("Dockerfile");
@@ -358,29 +477,43 @@ public abstract class DockerDaemonActions {
                         .collect(Collectors.joining("\n"))
         );
 
-        // We build with --no-cache to make things more straight forward, since we already cache images using Gradle's build cache
-        int imageBuild = dockerUtils.exec(spec -> {
+        // We build with --no-cache unless the step cache is enabled, since we already cache images using Gradle's build cache
+        final Path stepCacheDir = useStepCache && buildable.getStepCacheDirectory().isPresent() ?
+                RegularFileUtils.toPath(buildable.getStepCacheDirectory()) : null;
+        int imageBuild = timings.time("build", () -> buildable.getDockerDaemonService().get().run(DockerDaemonService.Operation.BUILD, () -> dockerUtils.exec(spec -> {
             spec.setWorkingDir(dockerFile.getParent().toFile());
-            if (System.getProperty("co.elastic.unsafe.use-docker-cache", "false").equals("true")) {
-                // This is usefull for development when we don't care about image corectness, but otherwhise dagerous,
-                //   e.g. dockerEphemeral content in run commands could lead to incorrect results
-                spec.commandLine("docker", "image", "build", "--platform", "linux/" + buildable.getArchitecture().get().dockerName(),
-                        "--quiet=false",
-                        "--progress=plain",
-                        "--iidfile=" + buildable.getImageIdFile().get().getAsFile(), ".", "-t",
-                        uuid
-                );
+            final List<String> commandLine = new ArrayList<>();
+            if (exportTo != null) {
+                commandLine.addAll(List.of("docker", "buildx", "build", "--output=type=docker,dest=-"));
+                spec.setStandardOutput(exportTo);
+            } else if (stepCacheDir != null) {
+                // The image needs to be loaded explicitly when building with buildx
+                commandLine.addAll(List.of("docker", "buildx", "build", "--load"));
             } else {
-                spec.commandLine("docker", "image", "build", "--platform", "linux/" + buildable.getArchitecture().get().dockerName(),
-                        "--quiet=false",
-                        "--no-cache",
-                        "--progress=plain",
-                        "--iidfile=" + buildable.getImageIdFile().get().getAsFile(), ".", "-t",
-                        uuid
-                );
+                commandLine.addAll(List.of("docker", "image", "build"));
+            }
+            if (stepCacheDir != null) {
+                // Exporting the cache requires buildx
+                commandLine.addAll(List.of(
+                        "--cache-from=type=local,src=" + stepCacheDir,
+                        "--cache-to=type=local,mode=max,dest=" + stepCacheDir
+                ));
             }
+            commandLine.addAll(List.of("--platform", "linux/" + buildable.getArchitecture().get().dockerName(),
+                    "--quiet=false"
+            ));
+            if (!useStepCache && !System.getProperty("co.elastic.unsafe.use-docker-cache", "false").equals("true")) {
+                // The unsafe cache is usefull for development when we don't care about image corectness, but
+                //   otherwhise dagerous, e.g. dockerEphemeral content in run commands could lead to incorrect results
+                commandLine.add("--no-cache");
+            }
+            commandLine.addAll(List.of("--progress=plain",
+                    "--iidfile=" + buildable.getImageIdFile().get().getAsFile(), ".", "-t",
+                    uuid.toString()
+            ));
+            spec.commandLine(commandLine);
             spec.setIgnoreExitValue(true);
-        }).getExitValue();
+        }).getExitValue()));
         if (imageBuild != 0) {
             throw new GradleException("Failed to build docker image, see the docker build log in the task output");
         }
@@ -388,6 +521,56 @@ public abstract class DockerDaemonActions {
         return uuid;
     }
 
+    /**
+     * The step cache is only used when all packages come from Gradle, otherwise the same instructions could
+     * legitimately produce different results, e.g. when generating the lockfile.
+     */
+    private boolean isStepCacheSafe() {
+        return buildable.getStepCache().get() && buildable.getIsolateFromExternalRepos().get();
+    }
+
+    /**
+     * Computes a key for everything RUN instructions can see through their mounts, that Docker doesn't consider when
+     * deciding if a step can be re-used: the contents of the ephemeral files and repository configuration, and the
+     * set of OS packages. Packages come from the lockfile and are named after their version, so their names and sizes
+     * are enough.
+     */
+    private String computeStepCacheKey() throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Path root : List.of(getDockerEphemeralDir(), getRepositoryEphemeralDir(), getOSPackagesDir())) {
+            if (!Files.exists(root)) {
+                continue;
+            }
+            final boolean hashContent = !root.equals(getOSPackagesDir());
+            final List<Path> files;
+            try (Stream<Path> walk = Files.walk(root)) {
+                files = walk.filter(Files::isRegularFile).sorted().toList();
+            }
+            for (Path file : files) {
+                digest.update(workingDir.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                if (hashContent) {
+                    try (InputStream in = Files.newInputStream(file)) {
+                        final byte[] buffer = new byte[64 * 1024];
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            digest.update(buffer, 0, read);
+                        }
+                    }
+                } else {
+                    digest.update(Long.toString(Files.size(file)).getBytes(StandardCharsets.UTF_8));
+                }
+                digest.update((byte) 0);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
     private void synchronizeFiles() throws IOException {
         Files.createDirectories(getContextDir());
         getFilesystemOperations().sync(spec -> {
@@ -396,19 +579,28 @@ public abstract class DockerDaemonActions {
                 }
         );
 
-        final Path dockerEphemeralDir = getDockerEphemeralDir();
-        Files.createDirectories(dockerEphemeralDir);
-        getFilesystemOperations().sync(copySpec -> {
-            copySpec.from(buildable.getDockerEphemeralConfiguration().get());
-            copySpec.into(dockerEphemeralDir);
-        });
+        // Configurations resolve to files in the Gradle cache that never change in place, so these are linked rather
+        // than copied, and only what changed since the last build is touched. OS packages are linked from the store
+        // shared by all the images of the build instead, so each package is only stored once.
+        final LinkedFileSync.Result ephemeral = LinkedFileSync.sync(
+                buildable.getDockerEphemeralConfiguration().get().getFiles(),
+                getDockerEphemeralDir()
+        );
+        logger.info("Staged docker ephemeral files: {}", ephemeral);
 
-        final Path osPackagesDir = getOSPackagesDir();
-        Files.createDirectories(osPackagesDir);
-        getFilesystemOperations().sync(copySpec -> {
-            copySpec.from(buildable.getOSPackagesConfiguration().get());
-            copySpec.into(osPackagesDir);
-        });
+        final LinkedFileSync.Result osPackages = LinkedFileSync.sync(
+                buildable.getOsPackageStore().get().addAll(buildable.getOSPackagesConfiguration().get().getFiles()),
+                getRepositoryPackagesDir()
+        );
+        logger.info("Staged OS packages: {}", osPackages);
+        timings.count("context-sync", "packages-linked", osPackages.linked() + osPackages.copied());
+        timings.count("context-sync", "packages-unchanged", osPackages.unchanged());
+
+        if (buildable.getIsolateFromExternalRepos().get()) {
+            final int indexed = RepositoryIndex.write(buildable.getOSDistribution().get(), getRepositoryPackagesDir());
+            logger.info("Generated repository metadata for {} OS packages", indexed);
+            timings.count("context-sync", "packages-indexed", indexed);
+        }
     }
 
 }
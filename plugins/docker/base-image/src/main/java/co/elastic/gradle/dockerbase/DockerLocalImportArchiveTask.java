@@ -21,7 +21,9 @@ package co.elastic.gradle.dockerbase;
 import co.elastic.gradle.utils.ExtractCompressedTar;
 import co.elastic.gradle.utils.RegularFileUtils;
 import co.elastic.gradle.utils.docker.ContainerImageProviderTask;
+import co.elastic.gradle.utils.docker.DockerDaemonService;
 import co.elastic.gradle.utils.docker.DockerUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.output.NullOutputStream;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
@@ -33,13 +35,21 @@ import org.gradle.process.ExecOperations;
 import org.gradle.process.ExecResult;
 
 import javax.inject.Inject;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public abstract class DockerLocalImportArchiveTask extends DefaultTask implements ContainerImageProviderTask {
 
+    private static final int PIPE_BUFFER_SIZE = 1024 * 1024;
+
     public DockerLocalImportArchiveTask() {
         getMarker().convention(
                 getProjectLayout().getBuildDirectory().file(getName() + ".marker")
@@ -60,6 +70,9 @@ public abstract class DockerLocalImportArchiveTask extends DefaultTask implement
     @OutputFile
     public abstract RegularFileProperty getMarker();
 
+    @Internal
+    public abstract Property<DockerDaemonService> getDockerDaemonService();
+
     @Inject
     public abstract ExecOperations getExecOperations();
 
@@ -75,14 +88,8 @@ public abstract class DockerLocalImportArchiveTask extends DefaultTask implement
             // The image might exist, but we want to make sure it's still tagged as we want it to
             tagImage(dockerUtils, imageId);
         } else {
-            final ByteArrayOutputStream out = new ByteArrayOutputStream();
-            try (InputStream archiveInput = ExtractCompressedTar.uncompressedInputStream(RegularFileUtils.toPath(getImageArchive()))) {
-                dockerUtils.exec(spec -> {
-                    spec.setStandardInput(archiveInput);
-                    spec.commandLine("docker", "load");
-                    spec.setStandardOutput(out);
-                });
-                final String dockerLoad = out.toString().trim();
+            try {
+                final String dockerLoad = load(dockerUtils);
                 final String uuid;
                 if (dockerLoad.startsWith("Loaded image:") && dockerLoad.endsWith(":latest")) {
                     uuid = dockerLoad.substring(dockerLoad.indexOf(":") + 1);
@@ -110,6 +117,118 @@ public abstract class DockerLocalImportArchiveTask extends DefaultTask implement
         );
     }
 
+    /**
+     * Loads the image archive into the daemon. When the previous image with the same tag is still there, the layers
+     * they have in common are left out of what's loaded, so only the layers that changed need to be imported.
+     */
+    private String load(DockerUtils dockerUtils) throws IOException {
+        final Path archive = RegularFileUtils.toPath(getImageArchive());
+        final List<String> existingLayers = getImageLayers(dockerUtils, getTag().get());
+        if (!existingLayers.isEmpty()) {
+            final DockerArchive dockerArchive = DockerArchive.read(archive);
+            final List<String> diffIds = dockerArchive.getDiffIds();
+            int reusableLayers = 0;
+            while (reusableLayers < Math.min(diffIds.size(), existingLayers.size()) &&
+                   diffIds.get(reusableLayers).equals(existingLayers.get(reusableLayers))) {
+                reusableLayers++;
+            }
+            if (reusableLayers > 0) {
+                getLogger().lifecycle(
+                        "Docker Daemon already has {} of the {} layers of the image. Importing the rest.",
+                        reusableLayers, diffIds.size()
+                );
+                final Optional<String> dockerLoad = loadWithoutLayers(dockerUtils, dockerArchive, reusableLayers);
+                if (dockerLoad.isPresent()) {
+                    return dockerLoad.get();
+                }
+                // e.g. the containerd image store requires all the layers to be present
+                getLogger().warn("Docker Daemon could not import only the changed layers, importing the whole image.");
+            }
+        }
+        try (InputStream archiveInput = ExtractCompressedTar.uncompressedInputStream(archive)) {
+            return dockerLoad(dockerUtils, archiveInput, false).orElseThrow();
+        }
+    }
+
+    /**
+     * Streams the archive without the layers the daemon already has straight into `docker load`, so the partial archive
+     * is never written to disk.
+     */
+    private Optional<String> loadWithoutLayers(
+            DockerUtils dockerUtils,
+            DockerArchive dockerArchive,
+            int skippedLayers
+    ) throws IOException {
+        final PipedInputStream archiveInput = new PipedInputStream(PIPE_BUFFER_SIZE);
+        final PipedOutputStream archiveOutput = new PipedOutputStream(archiveInput);
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> written = writer.submit(() -> {
+                try (OutputStream out = archiveOutput) {
+                    dockerArchive.writeWithoutLayers(skippedLayers, out);
+                }
+                return null;
+            });
+            final Optional<String> result;
+            // Closing the pipe unblocks the writer if docker load stops reading before the end of the archive
+            try (archiveInput) {
+                result = dockerLoad(dockerUtils, archiveInput, true);
+            }
+            try {
+                written.get();
+            } catch (ExecutionException e) {
+                if (result.isPresent()) {
+                    throw new GradleException("Failed to write the image archive to docker load", e.getCause());
+                }
+                getLogger().info("Stopped writing the image archive to docker load", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GradleException("Interrupted while importing the image", e);
+            }
+            return result;
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    private Optional<String> dockerLoad(DockerUtils dockerUtils, InputStream archiveInput, boolean ignoreFailure) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        final ExecResult result = getDockerDaemonService().get().run(
+                DockerDaemonService.Operation.LOAD,
+                () -> dockerUtils.exec(spec -> {
+                    spec.setStandardInput(archiveInput);
+                    spec.commandLine("docker", "load");
+                    spec.setStandardOutput(out);
+                    if (ignoreFailure) {
+                        spec.setErrorOutput(err);
+                        spec.setIgnoreExitValue(true);
+                    }
+                })
+        );
+        if (result.getExitValue() != 0) {
+            getLogger().info("docker load failed: {}", err.toString().trim());
+            return Optional.empty();
+        }
+        return Optional.of(out.toString().trim());
+    }
+
+    private List<String> getImageLayers(DockerUtils dockerUtils, String image) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ExecResult result = dockerUtils.exec(spec -> {
+            spec.commandLine("docker", "image", "inspect", "--format", "{{json .RootFS.Layers}}", image);
+            spec.setStandardOutput(out);
+            spec.setErrorOutput(NullOutputStream.NULL_OUTPUT_STREAM);
+            spec.setIgnoreExitValue(true);
+        });
+        if (result.getExitValue() != 0) {
+            return List.of();
+        }
+        final List<String> layers = new ArrayList<>();
+        new ObjectMapper().readTree(out.toByteArray()).forEach(layer -> layers.add(layer.asText()));
+        return layers;
+    }
+
     protected ExecResult tagImage(DockerUtils dockerUtils, String imageId) {
         return dockerUtils.exec(spec ->
                 spec.commandLine("docker", "tag", imageId, getTag().get())
@@ -19,23 +19,11 @@
 package co.elastic.gradle.dockerbase;
 
 
-import co.elastic.gradle.cli.jfrog.JFrogCliUsingTask;
-import co.elastic.gradle.dockerbase.lockfile.BaseLockfile;
-import co.elastic.gradle.dockerbase.lockfile.Packages;
-import co.elastic.gradle.dockerbase.lockfile.UnchangingPackage;
-import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RegularFileUtils;
-import co.elastic.gradle.utils.RetryUtils;
+import co.elastic.gradle.utils.docker.DockerDaemonService;
 import co.elastic.gradle.utils.docker.DockerPluginConventions;
-import co.elastic.gradle.utils.docker.DockerUtils;
-import co.elastic.gradle.utils.docker.UnchangingContainerReference;
-import co.elastic.gradle.utils.docker.instruction.*;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
+import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
 import org.gradle.api.DefaultTask;
-import org.gradle.api.GradleException;
 import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.ProjectLayout;
 import org.gradle.api.file.RegularFileProperty;
@@ -49,23 +37,14 @@ import org.gradle.api.tasks.*;
 import org.gradle.process.ExecOperations;
 
 import javax.inject.Inject;
-import java.io.*;
+import java.io.IOException;
 import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.PosixFilePermission;
 import java.time.Instant;
-import java.util.Optional;
-import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.List;
 
-public abstract class DockerLockfileTask extends DefaultTask implements ImageBuildable, JFrogCliUsingTask {
+public abstract class DockerLockfileTask extends DefaultTask implements LockfileBuildable {
 
-    public static final String ARCHIVE_PACKAGES_NAME = "archive-packages.sh";
     private final DefaultCopySpec rootCopySpec;
-    private String manifestDigest = null;
 
     @Inject
     public DockerLockfileTask() {
@@ -75,7 +54,13 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
         getWorkingDirectory().convention(
                 getProjectLayout().getBuildDirectory().dir(getName())
         );
+        getTimingsFile().convention(
+                getProjectLayout().getBuildDirectory().file(getName() + "/timings.json")
+        );
+        getMaxConcurrentUploads().convention(10);
         getIsolateFromExternalRepos().convention(false);
+        // The lockfile needs the latest packages, so nothing can be re-used from previous builds
+        getStepCache().convention(false);
         rootCopySpec = getProject().getObjects().newInstance(DefaultCopySpec.class);
         rootCopySpec.addChildSpecListener(DockerPluginConventions.mapCopySpecToTaskInputs(this));
     }
@@ -119,15 +104,27 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
     @Input
     public abstract Property<String> getDockerEphemeralMount();
 
-    @Override
-    @InputFile
-    @PathSensitive(PathSensitivity.NAME_ONLY)
-    public abstract RegularFileProperty getJFrogCli();
-
     @Override
     @Input
     public abstract Property<Boolean> getIsolateFromExternalRepos();
 
+    @Override
+    @Internal
+    public abstract Property<Boolean> getStepCache();
+
+    @Override
+    @Internal
+    public abstract DirectoryProperty getStepCacheDirectory();
+
+    @Override
+    @Internal
+    public abstract Property<DockerDaemonService> getDockerDaemonService();
+
+    @Override
+    @Internal
+    public abstract Property<OsPackageStoreService> getOsPackageStore();
+
+    @Override
     @Nested
     public abstract ListProperty<ContainerImageBuildInstruction> getInputInstructions();
 
@@ -135,58 +132,10 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
     @Nested
     public List<ContainerImageBuildInstruction> getActualInstructions() {
         // Use the last available digest for this image
-        return Stream.concat(
-                        getInputInstructions().get().stream()
-                                .map(instruction -> {
-                                    if (instruction instanceof From from) {
-                                        if (from.getReference().get().contains("@")) {
-                                            throw new IllegalStateException("Input instruction can't have a digest");
-                                        }
-                                        return new From(getProviderFactory().provider(() ->
-                                        {
-                                            final String[] split = from.getReference().get().split(":");
-                                            return String.format(
-                                                    "%s:%s@%s",
-                                                    split[0],
-                                                    split[1],
-                                                    getManifestDigest(from.getReference().get())
-                                            );
-                                        }));
-                                    } else {
-                                        return instruction;
-                                    }
-                                }),
-                        Stream.concat(
-                            getInputInstructions().get().stream().flatMap(i -> {
-                                if (i instanceof RepoInstall repoInstall) {
-                                    final String packages = repoInstall.getPackages().stream().collect(Collectors.joining(" "));
-                                    return Stream.of(
-                                            new SetUser("root"),
-                                            switch (getOSDistribution().get()) {
-                                                case UBUNTU, DEBIAN -> new Run(List.of("apt-get -y --auto-remove purge " + packages));
-                                                case CENTOS -> new Run(List.of("yum -y --remove-leaves remove " + packages));
-                                                case WOLFI -> throw new GradleException("Wolfi images don't support repoInstall") ;
-                                            }
-                                    );
-                                }
-                                return Stream.empty();
-                            }),
-                            Stream.of(
-                                    new SetUser("root"),
-                                    DockerDaemonActions.wrapInstallCommand(
-                                            this,
-                                            switch (getOSDistribution().get()) {
-                                                case UBUNTU, DEBIAN -> "apt-get -y --allow-unauthenticated upgrade";
-                                                case CENTOS -> "yum -y upgrade";
-                                                case WOLFI -> "apk upgrade --no-cache";
-                                            }
-                                    )
-                            )
-                        )
-                )
-                .toList();
+        return LockfileExport.actualInstructions(this, getProviderFactory());
     }
 
+    @Override
     @Input
     public abstract Property<URL> getOsPackageRepository();
 
@@ -205,195 +154,49 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
     @Inject
     protected abstract ObjectFactory getObjectFactory();
 
-    @TaskAction
-    public void generateLockfile() throws IOException {
-        DockerDaemonActions daemonActions = getObjectFactory().newInstance(DockerDaemonActions.class, this);
-        DockerUtils dockerUtils = new DockerUtils(getExecOperations());
-
-        final UUID uuid = daemonActions.build();
-
-        final Path archiveScript = writeScript(RegularFileUtils.toPath(getWorkingDirectory()), ARCHIVE_PACKAGES_NAME);
-
-        getLogger().lifecycle(
-                "\nRunning the created image to extract package information and upload packages with {} ...",
-                getJFrogCli().get().getAsFile().toPath()
-        );
-        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
-
-            final URL repoUrl = getOsPackageRepository().get();
-            final Optional<String[]> userinfo = Optional.ofNullable(repoUrl.getUserInfo()).map(it -> it.split(":"));
-            String jfrogCLiArgs = String.format(
-                    "--retries=25 --retry-wait-time=5s --threads=10 --insecure-tls %s --url %s",
-                    userinfo.map(it -> String.format("--user %s --password %s", it[0], it[1])).orElse(""),
-                    new URL(repoUrl.toString().replace(repoUrl.getUserInfo() + "@", "") +
-                            "/" + getOSDistribution().get().name().toLowerCase(Locale.ROOT)
-                    )
-            );
-            dockerUtils.exec(spec -> {
-                spec.setStandardOutput(byteArrayOutputStream);
-                spec.setErrorOutput(System.err);
-                spec.commandLine(
-                        "docker", "run", "--rm",
-                        "-v", archiveScript + ":/mnt/" + ARCHIVE_PACKAGES_NAME,
-                        "-v", getJFrogCli().get().getAsFile().toPath() + ":/mnt/jfrog-cli",
-                        "--entrypoint",  getOSDistribution().get().equals(OSDistribution.WOLFI) ? "/bin/sh" : "/bin/bash",
-                        "-eJFROG_CLI_ARGS=" + jfrogCLiArgs,
-                        uuid,
-                        "/mnt/" + ARCHIVE_PACKAGES_NAME
-                );
-            });
-            writeLockfile(byteArrayOutputStream);
-            getLogger().lifecycle("Written new lockfile to {}", getLockFileLocation().get());
-        }
-        dockerUtils.exec(spec -> spec.commandLine("docker", "image", "rm", uuid));
-    }
-
-
-    private void writeLockfile(ByteArrayOutputStream csvStream) throws IOException {
-        final BaseLockfile oldLockfile;
-        if (Files.exists(RegularFileUtils.toPath(getLockFileLocation()))) {
-            oldLockfile = BaseLockfile.parse(Files.newBufferedReader(RegularFileUtils.toPath(getLockFileLocation())));
-        } else {
-            oldLockfile = new BaseLockfile(Map.of(), null);
-        }
-        final Map<Architecture, Packages> packages = new HashMap<>(oldLockfile.getPackages());
-        Map<Architecture, UnchangingContainerReference> image;
-        if (oldLockfile.getImage() != null) {
-            image = new HashMap<>(oldLockfile.getImage());
-        } else {
-            image = null;
-        }
-
-        final String csvString = csvStream.toString().trim();
-        if (csvString.isEmpty()) {
-            throw new IllegalStateException("Failed to read installed packages from docker image");
-        }
-        try (Reader reader = new StringReader(csvString)) {
-            CSVParser parser = CSVParser.parse(reader, CSVFormat.DEFAULT);
-            packages.put(
-                    getArchitecture().get(),
-                    new Packages(
-                            // Keep the latest version only. CentOS can keep multiple versions installed, e.g. kernel-core
-                            Packages.getUniquePackagesWithMaxVersion(parser.getRecords().stream()
-                                    .map(record -> {
-                                        if (record.size() < 4) {
-                                            throw new RuntimeException("CSV line from script not valid: " + record.get(0));
-                                        }
-                                        return new UnchangingPackage(
-                                                record.get(0),
-                                                record.get(1),
-                                                record.get(2),
-                                                record.get(3)
-                                        );
-                                    }).toList()
-                            )
-                    )
-            );
-        }
-
-        Optional<UnchangingContainerReference> newImage = getActualInstructions().stream()
-                .filter(each -> each instanceof From)
-                .map(each -> (From) each)
-                .map(each -> {
-                    final String[] split = each.getReference().get().split(":", 2);
-                    return new UnchangingContainerReference(
-                            split[0],
-                            // At this point the sha was added to the instructions because we are operating on the
-                            // actual instructions
-                            split[1].split("@", 2)[0],
-                            getManifestDigest(each.getReference().get())
-                    );
-                })
-                .findAny();
-
-        if (newImage.isPresent()) {
-            if (image == null) {
-                image = new HashMap<>();
-            }
-            image.put(getArchitecture().get(), newImage.get());
-        } else {
-            image = null;
-        }
+    /**
+     * Where to write how long each phase of generating the lockfile took, as JSON.
+     */
+    @Override
+    @Internal
+    public abstract RegularFileProperty getTimingsFile();
 
-        try (Writer writer = Files.newBufferedWriter(RegularFileUtils.toPath(getLockFileLocation()))) {
-            BaseLockfile.write(
-                    new BaseLockfile(
-                            packages,
-                            image
-                    ),
-                    writer
-            );
-        }
-    }
+    /**
+     * Adds the timings to the build scan too, resolved when the task is configured. Not set unless enabled.
+     */
+    @Override
+    @Internal
+    public abstract Property<BuildScanTimings> getBuildScanTimings();
 
-    private String getManifestDigest(String image) {
-        if (manifestDigest != null) {
-            return manifestDigest;
-        }
-        DockerUtils daemonActions = new DockerUtils(getExecOperations());
-        return RetryUtils.retry(() -> {
-                    try (ByteArrayOutputStream stdout = new ByteArrayOutputStream()) {
-                        daemonActions.exec(spec -> {
-                            spec.setStandardOutput(stdout);
-                            spec.commandLine("docker", "manifest", "inspect", image);
-                        });
-                        try (InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(stdout.toByteArray()))) {
-                            ObjectMapper mapper = new ObjectMapper();
-                            JsonNode root = mapper.readTree(reader);
-                            String digest = null;
-                            Iterator<JsonNode> manifests = root.path("manifests").elements();
-                            while (manifests.hasNext()) {
-                                JsonNode manifest = manifests.next();
-                                if (getArchitecture().get().dockerName().equals(manifest.path("platform").path("architecture").asText())) {
-                                    digest = manifest.path("digest").asText(null);
-                                    break;
-                                }
-                            }
-                            if (digest == null) {
-                                // Happens when the tag does not point to a manifest list
-                                // We could make this work for a single platform if we really wanted to, for now it's an error
-                                throw new GradleException("Can't find manifest digest from docker output. " +
-                                                          "Does the image have a manifest?\n" + stdout
-                                );
-                            }
-                            manifestDigest = digest;
-                            return digest;
-                        }
-                    } catch (IOException e) {
-                        throw new UncheckedIOException("Failed to read the image manifest", e);
-                    }
-                })
-                .maxAttempt(3)
-                .exponentialBackoff(1000, 100000)
-                .execute();
-    }
+    @Override
+    @Internal
+    public abstract Property<RegistryManifestService> getRegistryManifestService();
 
+    /**
+     * The maximum number of package files uploaded at the same time. Uploads start with fewer, and back off when the
+     * repository is overloaded.
+     */
+    @Override
+    @Internal
+    public abstract Property<Integer> getMaxConcurrentUploads();
 
-    private Path writeScript(Path dir, String resource) {
-        InputStream resourceStream = getClass().getResourceAsStream(String.format("/%s", resource));
-        if (resourceStream == null) {
-            throw new GradleException(
-                    String.format("Could not find an embedded resource for %s", resource));
-        }
+    @TaskAction
+    public void generateLockfile() throws IOException {
+        DockerDaemonActions daemonActions = getObjectFactory().newInstance(DockerDaemonActions.class, this);
         try {
-            final Path script = dir.resolve(resource);
-            Files.copy(
-                    resourceStream, script,
-                    StandardCopyOption.REPLACE_EXISTING
+            final LockfileExport export = new LockfileExport(
+                    this, getExecOperations(), LockfileExport.newUploader(this), getLogger()
             );
-            Files.setPosixFilePermissions(
-                    script,
-                    Set.of(
-                            PosixFilePermission.OWNER_READ,
-                            PosixFilePermission.OTHERS_READ,
-                            PosixFilePermission.OTHERS_EXECUTE,
-                            PosixFilePermission.OWNER_EXECUTE
+            final LockfileExport.LockfileUpdate update = export.exportPackages(daemonActions);
+            daemonActions.getTimings().time(
+                    "write-lockfile",
+                    () -> LockfileExport.writeLockfile(
+                            RegularFileUtils.toPath(getLockFileLocation()), List.of(update), getLogger()
                     )
             );
-            return script;
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+            getLogger().lifecycle("Written new lockfile to {}", getLockFileLocation().get());
+        } finally {
+            LockfileExport.writeTimings(this, getPath(), daemonActions.getTimings());
         }
     }
-
 }
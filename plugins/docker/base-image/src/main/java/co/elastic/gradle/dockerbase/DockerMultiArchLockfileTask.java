@@ -0,0 +1,176 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.Architecture;
+import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.docker.DockerPluginConventions;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ProjectLayout;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.internal.file.copy.DefaultCopySpec;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Nested;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.process.ExecOperations;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Generates the lockfile for all architectures at once. The images for the different architectures are built and
+ * their packages exported at the same time, relying on emulation for the ones that don't match the host, and the
+ * lockfile is written only once at the end.
+ */
+public abstract class DockerMultiArchLockfileTask extends DefaultTask {
+
+    private final DefaultCopySpec rootCopySpec;
+
+    @Inject
+    public DockerMultiArchLockfileTask() {
+        rootCopySpec = getObjectFactory().newInstance(DefaultCopySpec.class);
+        rootCopySpec.addChildSpecListener(DockerPluginConventions.mapCopySpecToTaskInputs(this));
+    }
+
+    @Input
+    public Instant getCurrentTime() {
+        // Task should never be considered up-to-date
+        return Instant.now();
+    }
+
+    @Internal
+    public abstract RegularFileProperty getLockFileLocation();
+
+    /**
+     * The configuration of each architecture the lockfile is generated for, see {@link #addArchitecture(Architecture)}.
+     */
+    @Nested
+    public abstract ListProperty<LockfileArchitecture> getArchitectures();
+
+    @Internal
+    public DefaultCopySpec getRootCopySpec() {
+        return rootCopySpec;
+    }
+
+    @Inject
+    protected abstract ObjectFactory getObjectFactory();
+
+    @Inject
+    protected abstract ProjectLayout getProjectLayout();
+
+    @Inject
+    protected abstract ExecOperations getExecOperations();
+
+    /**
+     * Adds an architecture to generate the lockfile for, with its own working directory.
+     */
+    public LockfileArchitecture addArchitecture(Architecture architecture) {
+        final LockfileArchitecture result = getObjectFactory().newInstance(LockfileArchitecture.class, rootCopySpec);
+        final String baseDir = getName() + "/" + architecture.dockerName();
+        result.getArchitecture().set(architecture);
+        result.getImageIdFile().convention(getProjectLayout().getBuildDirectory().file(baseDir + "/tmp.image.id"));
+        result.getWorkingDirectory().convention(getProjectLayout().getBuildDirectory().dir(baseDir));
+        result.getTimingsFile().convention(getProjectLayout().getBuildDirectory().file(baseDir + "/timings.json"));
+        getArchitectures().add(result);
+        return result;
+    }
+
+    @TaskAction
+    public void generateLockfile() throws IOException {
+        final Map<Architecture, LockfileArchitecture> architectures = getArchitectures().get().stream()
+                .collect(Collectors.toMap(
+                        each -> each.getArchitecture().get(),
+                        each -> each,
+                        (a, b) -> a,
+                        TreeMap::new
+                ));
+        // Create these and stage the files of each architecture before handing off to other threads, only the
+        // docker commands and uploads run on those
+        final Map<Architecture, DockerDaemonActions> daemonActions = new TreeMap<>();
+        architectures.forEach((architecture, each) ->
+                daemonActions.put(architecture, getObjectFactory().newInstance(DockerDaemonActions.class, each))
+        );
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, architectures.size()));
+        try {
+            for (DockerDaemonActions each : daemonActions.values()) {
+                each.prepareContext();
+            }
+
+            // All architectures upload to the same repository, so they share the limit on concurrent uploads
+            final PackageUploader uploader = LockfileExport.newUploader(architectures.values().iterator().next());
+            final Map<Architecture, Future<LockfileExport.LockfileUpdate>> exports = new TreeMap<>();
+            architectures.forEach((architecture, each) -> {
+                final LockfileExport export = new LockfileExport(each, getExecOperations(), uploader, getLogger());
+                exports.put(architecture, executor.submit(() -> export.exportPackages(daemonActions.get(architecture))));
+            });
+
+            final List<LockfileExport.LockfileUpdate> updates = new ArrayList<>();
+            final Map<Architecture, Throwable> failures = new TreeMap<>();
+            for (Map.Entry<Architecture, Future<LockfileExport.LockfileUpdate>> export : exports.entrySet()) {
+                try {
+                    updates.add(export.getValue().get());
+                } catch (ExecutionException e) {
+                    failures.put(export.getKey(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GradleException("Interrupted while generating the lockfile", e);
+                }
+            }
+            if (!failures.isEmpty()) {
+                failures.forEach((architecture, error) ->
+                        getLogger().error("Generating the lockfile for {} failed", architecture, error)
+                );
+                final GradleException exception = new GradleException(
+                        "Failed to generate the lockfile for: " + failures.keySet().stream()
+                                .map(Architecture::dockerName)
+                                .collect(Collectors.joining(", "))
+                );
+                failures.values().forEach(exception::addSuppressed);
+                throw exception;
+            }
+
+            LockfileExport.writeLockfile(RegularFileUtils.toPath(getLockFileLocation()), updates, getLogger());
+            getLogger().lifecycle("Written new lockfile for {} to {}", architectures.keySet(), getLockFileLocation().get());
+        } finally {
+            executor.shutdownNow();
+            for (Map.Entry<Architecture, DockerDaemonActions> each : daemonActions.entrySet()) {
+                LockfileExport.writeTimings(
+                        architectures.get(each.getKey()),
+                        getPath() + " " + each.getKey().dockerName(),
+                        each.getValue().getTimings()
+                );
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package co.elastic.gradle.dockerbase;
 
 import co.elastic.gradle.utils.Architecture;
+import co.elastic.gradle.utils.docker.DockerDaemonService;
 import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
 import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.file.DirectoryProperty;
@@ -59,6 +60,16 @@ public interface ImageBuildable {
 
     Property<Boolean> getIsolateFromExternalRepos();
 
+    Property<Boolean> getStepCache();
+
+    DirectoryProperty getStepCacheDirectory();
+
     @Input
     Property<Architecture> getArchitecture();
+
+    @Internal
+    Property<DockerDaemonService> getDockerDaemonService();
+
+    @Internal
+    Property<OsPackageStoreService> getOsPackageStore();
 }
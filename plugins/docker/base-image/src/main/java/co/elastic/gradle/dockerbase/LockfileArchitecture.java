@@ -0,0 +1,141 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.docker.DockerDaemonService;
+import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.internal.file.copy.DefaultCopySpec;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.provider.ProviderFactory;
+import org.gradle.api.tasks.*;
+
+import javax.inject.Inject;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * The configuration of one architecture of {@link DockerMultiArchLockfileTask}, the same as the one of the
+ * {@link DockerLockfileTask} for that architecture.
+ */
+public abstract class LockfileArchitecture implements LockfileBuildable {
+
+    private final DefaultCopySpec rootCopySpec;
+
+    @Inject
+    public LockfileArchitecture(DefaultCopySpec rootCopySpec) {
+        this.rootCopySpec = rootCopySpec;
+        getMaxConcurrentUploads().convention(10);
+        getIsolateFromExternalRepos().convention(false);
+        // The lockfile needs the latest packages, so nothing can be re-used from previous builds
+        getStepCache().convention(false);
+    }
+
+    @Override
+    @Internal
+    public Provider<String> getImageId() {
+        return getImageIdFile().map(RegularFileUtils::readString).map(String::trim);
+    }
+
+    @Override
+    @OutputFile
+    public abstract RegularFileProperty getImageIdFile();
+
+    @Override
+    @Internal
+    public abstract DirectoryProperty getWorkingDirectory();
+
+    @Override
+    @Input
+    public abstract Property<OSDistribution> getOSDistribution();
+
+    @Override
+    @Nested
+    public abstract ListProperty<OsPackageRepository> getMirrorRepositories();
+
+    /**
+     * Shared by all the architectures, its inputs are tracked by the task.
+     */
+    @Override
+    @Internal
+    public DefaultCopySpec getRootCopySpec() {
+        return rootCopySpec;
+    }
+
+    @Override
+    @Input
+    public abstract Property<String> getDockerEphemeralMount();
+
+    @Override
+    @Input
+    public abstract Property<Boolean> getIsolateFromExternalRepos();
+
+    @Override
+    @Internal
+    public abstract Property<Boolean> getStepCache();
+
+    @Override
+    @Internal
+    public abstract DirectoryProperty getStepCacheDirectory();
+
+    @Override
+    @Internal
+    public abstract Property<DockerDaemonService> getDockerDaemonService();
+
+    @Override
+    @Internal
+    public abstract Property<OsPackageStoreService> getOsPackageStore();
+
+    @Override
+    @Nested
+    public abstract ListProperty<ContainerImageBuildInstruction> getInputInstructions();
+
+    @Override
+    @Nested
+    public List<ContainerImageBuildInstruction> getActualInstructions() {
+        return LockfileExport.actualInstructions(this, getProviderFactory());
+    }
+
+    @Override
+    @Input
+    public abstract Property<URL> getOsPackageRepository();
+
+    @Override
+    @Internal
+    public abstract Property<Integer> getMaxConcurrentUploads();
+
+    @Override
+    @Internal
+    public abstract Property<RegistryManifestService> getRegistryManifestService();
+
+    @Override
+    @Internal
+    public abstract RegularFileProperty getTimingsFile();
+
+    @Override
+    @Internal
+    public abstract Property<BuildScanTimings> getBuildScanTimings();
+
+    @Inject
+    protected abstract ProviderFactory getProviderFactory();
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.dockerbase.lockfile.BaseLockfile;
+import co.elastic.gradle.dockerbase.lockfile.Packages;
+import co.elastic.gradle.dockerbase.lockfile.PackagesDiff;
+import co.elastic.gradle.dockerbase.lockfile.UnchangingPackage;
+import co.elastic.gradle.utils.Architecture;
+import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.docker.DockerUtils;
+import co.elastic.gradle.utils.docker.UnchangingContainerReference;
+import co.elastic.gradle.utils.docker.instruction.*;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.provider.ProviderFactory;
+import org.gradle.process.ExecOperations;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Optional;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Generates the packages of the lockfile for a single architecture. Shared by the lockfile tasks, so the one for all
+ * architectures doesn't need to run the code of the others.
+ */
+class LockfileExport {
+
+    static final String ARCHIVE_PACKAGES_NAME = "archive-packages.sh";
+    private static final String CONTAINER_EXPORT_DIR = "/var/export";
+
+    /**
+     * The packages and base image of a single architecture, to be merged into the lockfile.
+     */
+    record LockfileUpdate(Architecture architecture, Packages packages, UnchangingContainerReference image) {
+    }
+
+    private final LockfileBuildable buildable;
+    private final ExecOperations execOperations;
+    private final PackageUploader uploader;
+    private final Logger logger;
+
+    /**
+     * @param uploader can be shared by the exports of multiple architectures, see {@link #newUploader(LockfileBuildable)}
+     */
+    LockfileExport(LockfileBuildable buildable, ExecOperations execOperations, PackageUploader uploader, Logger logger) {
+        this.buildable = buildable;
+        this.execOperations = execOperations;
+        this.uploader = uploader;
+        this.logger = logger;
+    }
+
+    /**
+     * Creates the uploader to the OS package repository of the buildable, for the packages of its distribution.
+     */
+    static PackageUploader newUploader(LockfileBuildable buildable) {
+        final URL repoUrl = buildable.getOsPackageRepository().get();
+        final String authorization = Optional.ofNullable(repoUrl.getUserInfo())
+                .map(userInfo -> "Basic " + Base64.getEncoder().encodeToString(
+                        URLDecoder.decode(userInfo, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8)
+                ))
+                .orElse(null);
+        final URI uploadUri = URI.create(
+                repoUrl.toString().replace(repoUrl.getUserInfo() + "@", "") +
+                "/" + buildable.getOSDistribution().get().name().toLowerCase(Locale.ROOT)
+        );
+        return new PackageUploader(uploadUri, authorization, buildable.getMaxConcurrentUploads().get());
+    }
+
+    /**
+     * The instructions to build the image with: the latest digest of the base image, and upgrading all packages.
+     */
+    static List<ContainerImageBuildInstruction> actualInstructions(LockfileBuildable buildable, ProviderFactory providerFactory) {
+        return Stream.concat(
+                        buildable.getInputInstructions().get().stream()
+                                .map(instruction -> {
+                                    if (instruction instanceof From from) {
+                                        if (from.getReference().get().contains("@")) {
+                                            throw new IllegalStateException("Input instruction can't have a digest");
+                                        }
+                                        return new From(providerFactory.provider(() ->
+                                        {
+                                            final String[] split = from.getReference().get().split(":");
+                                            return String.format(
+                                                    "%s:%s@%s",
+                                                    split[0],
+                                                    split[1],
+                                                    getManifestDigest(buildable, from.getReference().get())
+                                            );
+                                        }));
+                                    } else {
+                                        return instruction;
+                                    }
+                                }),
+                        Stream.concat(
+                            buildable.getInputInstructions().get().stream().flatMap(i -> {
+                                if (i instanceof RepoInstall repoInstall) {
+                                    final String packages = repoInstall.getPackages().stream().collect(Collectors.joining(" "));
+                                    return Stream.of(
+                                            new SetUser("root"),
+                                            switch (buildable.getOSDistribution().get()) {
+                                                case UBUNTU, DEBIAN -> new Run(List.of("apt-get -y --auto-remove purge " + packages));
+                                                case CENTOS -> new Run(List.of("yum -y --remove-leaves remove " + packages));
+                                                case WOLFI -> throw new GradleException("Wolfi images don't support repoInstall") ;
+                                            }
+                                    );
+                                }
+                                return Stream.empty();
+                            }),
+                            Stream.of(
+                                    new SetUser("root"),
+                                    DockerDaemonActions.wrapInstallCommand(
+                                            buildable,
+                                            switch (buildable.getOSDistribution().get()) {
+                                                case UBUNTU, DEBIAN -> "apt-get -y --allow-unauthenticated upgrade";
+                                                case CENTOS -> "yum -y upgrade";
+                                                case WOLFI -> "apk upgrade --no-cache";
+                                            }
+                                    )
+                            )
+                        )
+                )
+                .toList();
+    }
+
+    /**
+     * Builds the image, then runs it to list and export the installed packages and uploads them. Doesn't touch the lockfile, so
+     * it can be called for multiple architectures at the same time.
+     */
+    LockfileUpdate exportPackages(DockerDaemonActions daemonActions) throws IOException {
+        final PhaseTimings timings = daemonActions.getTimings();
+        DockerUtils dockerUtils = new DockerUtils(execOperations);
+
+        final UUID uuid = daemonActions.build();
+
+        final Path archiveScript = writeScript(RegularFileUtils.toPath(buildable.getWorkingDirectory()), ARCHIVE_PACKAGES_NAME);
+
+        logger.lifecycle(
+                "\nRunning the created image for {} to extract package information and export packages ...",
+                buildable.getArchitecture().get()
+        );
+        final Path exportDir = RegularFileUtils.toPath(buildable.getWorkingDirectory()).resolve("packages");
+        FileUtils.deleteDirectory(exportDir.toFile());
+        Files.createDirectories(exportDir);
+        final String container = "lockfile-" + uuid;
+        final Packages packages;
+        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
+            timings.time("package-export", () -> {
+                try {
+                    dockerUtils.exec(spec -> {
+                        spec.setStandardOutput(byteArrayOutputStream);
+                        spec.setErrorOutput(System.err);
+                        spec.commandLine(
+                                "docker", "run", "--name", container,
+                                "-v", archiveScript + ":/mnt/" + ARCHIVE_PACKAGES_NAME,
+                                "--entrypoint",  buildable.getOSDistribution().get().equals(OSDistribution.WOLFI) ? "/bin/sh" : "/bin/bash",
+                                "-eEXPORT_DIR=" + CONTAINER_EXPORT_DIR,
+                                uuid,
+                                "/mnt/" + ARCHIVE_PACKAGES_NAME
+                        );
+                    });
+                    // Copy rather than mount, so the files are owned by the current user
+                    dockerUtils.exec(spec -> spec.commandLine(
+                            "docker", "cp", container + ":" + CONTAINER_EXPORT_DIR + "/.", exportDir.toString()
+                    ));
+                } finally {
+                    dockerUtils.exec(spec -> {
+                        spec.commandLine("docker", "rm", "-f", container);
+                        spec.setIgnoreExitValue(true);
+                    });
+                }
+            });
+            packages = timings.time("parse-packages", () -> parsePackages(byteArrayOutputStream.toString()));
+        }
+
+        final PackageUploader.Result uploads = timings.time("package-upload", () -> uploader.upload(exportDir));
+        timings.count("package-upload", "uploaded", uploads.uploaded());
+        timings.count("package-upload", "skipped", uploads.skipped());
+        timings.count("package-upload", "uploaded-bytes", uploads.uploadedBytes());
+        logger.lifecycle(
+                "Uploaded {} package files for {} to {}, {} were already there",
+                uploads.uploaded(), buildable.getArchitecture().get(), uploader.getBaseUri(), uploads.skipped()
+        );
+        dockerUtils.exec(spec -> spec.commandLine("docker", "image", "rm", uuid));
+
+        final UnchangingContainerReference image = buildable.getActualInstructions().stream()
+                .filter(each -> each instanceof From)
+                .map(each -> (From) each)
+                .map(each -> {
+                    final String[] split = each.getReference().get().split(":", 2);
+                    return new UnchangingContainerReference(
+                            split[0],
+                            // At this point the sha was added to the instructions because we are operating on the
+                            // actual instructions
+                            split[1].split("@", 2)[0],
+                            getManifestDigest(buildable, each.getReference().get())
+                    );
+                })
+                .findAny()
+                .orElse(null);
+
+        return new LockfileUpdate(buildable.getArchitecture().get(), packages, image);
+    }
+
+    /**
+     * Writes the timings to the timings file of the buildable, and the build scan when enabled.
+     */
+    static void writeTimings(LockfileBuildable buildable, String name, PhaseTimings timings) throws IOException {
+        timings.write(name, RegularFileUtils.toPath(buildable.getTimingsFile()));
+        if (buildable.getBuildScanTimings().isPresent()) {
+            buildable.getBuildScanTimings().get().publish(name, timings);
+        }
+    }
+
+    private static Packages parsePackages(String csv) throws IOException {
+        final String csvString = csv.trim();
+        if (csvString.isEmpty()) {
+            throw new IllegalStateException("Failed to read installed packages from docker image");
+        }
+        try (Reader reader = new StringReader(csvString)) {
+            CSVParser parser = CSVParser.parse(reader, CSVFormat.DEFAULT);
+            return new Packages(
+                    // Keep the latest version only. CentOS can keep multiple versions installed, e.g. kernel-core
+                    Packages.getUniquePackagesWithMaxVersion(parser.getRecords().stream()
+                            .map(record -> {
+                                if (record.size() < 4) {
+                                    throw new RuntimeException("CSV line from script not valid: " + record.get(0));
+                                }
+                                return new UnchangingPackage(
+                                        record.get(0),
+                                        record.get(1),
+                                        record.get(2),
+                                        record.get(3)
+                                );
+                            }).toList()
+                    )
+            );
+        }
+    }
+
+    /**
+     * Merges the updates into the existing lockfile, if any, and writes it once. What changed for each updated
+     * architecture is logged.
+     */
+    static void writeLockfile(Path lockfileLocation, Collection<LockfileUpdate> updates, Logger logger)
+            throws IOException {
+        final BaseLockfile oldLockfile;
+        if (Files.exists(lockfileLocation)) {
+            try (Reader reader = Files.newBufferedReader(lockfileLocation)) {
+                oldLockfile = BaseLockfile.parse(reader);
+            }
+        } else {
+            oldLockfile = new BaseLockfile(Map.of(), null);
+        }
+        final Map<Architecture, Packages> packages = new HashMap<>(oldLockfile.getPackages());
+        Map<Architecture, UnchangingContainerReference> image;
+        if (oldLockfile.getImage() != null) {
+            image = new HashMap<>(oldLockfile.getImage());
+        } else {
+            image = null;
+        }
+
+        for (LockfileUpdate update : updates) {
+            packages.put(update.architecture(), update.packages());
+            if (update.image() != null) {
+                if (image == null) {
+                    image = new HashMap<>();
+                }
+                image.put(update.architecture(), update.image());
+            } else {
+                image = null;
+            }
+        }
+
+        final BaseLockfile newLockfile = new BaseLockfile(packages, image);
+        try (Writer writer = Files.newBufferedWriter(lockfileLocation)) {
+            BaseLockfile.write(newLockfile, writer);
+        }
+
+        final Map<Architecture, PackagesDiff> diff = newLockfile.diff(oldLockfile);
+        for (LockfileUpdate update : updates) {
+            final PackagesDiff packagesDiff = diff.get(update.architecture());
+            if (packagesDiff.isEmpty()) {
+                logger.lifecycle("No package changes for {}", update.architecture());
+            } else {
+                logger.lifecycle(
+                        "Package changes for {}:\n{}",
+                        update.architecture(),
+                        String.join("\n", packagesDiff.describe())
+                );
+            }
+        }
+    }
+
+    private static String getManifestDigest(LockfileBuildable buildable, String image) {
+        // The reference can already have the digest of the architecture, the lookup is always done by tag
+        return buildable.getRegistryManifestService().get().getManifestDigest(
+                image.split("@", 2)[0],
+                buildable.getArchitecture().get()
+        );
+    }
+
+    private Path writeScript(Path dir, String resource) {
+        InputStream resourceStream = getClass().getResourceAsStream(String.format("/%s", resource));
+        if (resourceStream == null) {
+            throw new GradleException(
+                    String.format("Could not find an embedded resource for %s", resource));
+        }
+        try {
+            final Path script = dir.resolve(resource);
+            Files.copy(
+                    resourceStream, script,
+                    StandardCopyOption.REPLACE_EXISTING
+            );
+            Files.setPosixFilePermissions(
+                    script,
+                    Set.of(
+                            PosixFilePermission.OWNER_READ,
+                            PosixFilePermission.OTHERS_READ,
+                            PosixFilePermission.OTHERS_EXECUTE,
+                            PosixFilePermission.OWNER_EXECUTE
+                    )
+            );
+            return script;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.ContentAddressedStore;
+import org.gradle.api.Project;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Keeps the OS packages of all the base images of a build in a single store in the build directory of the root
+ * project, so packages shared by several images are only stored once. Each image links the packages it needs from the
+ * store.
+ * <p>
+ * The store can be moved with the {@code co.elastic.docker.os-packages.store} Gradle property and the number of
+ * packages added at the same time limited with {@code co.elastic.docker.os-packages.max-parallelism}.
+ */
+public abstract class OsPackageStoreService implements BuildService<OsPackageStoreService.Parameters>, AutoCloseable {
+
+    public static final String NAME = "osPackageStore";
+
+    private static final Logger logger = Logging.getLogger(OsPackageStoreService.class);
+
+    public interface Parameters extends BuildServiceParameters {
+        DirectoryProperty getStoreDirectory();
+
+        Property<Integer> getMaxParallelism();
+    }
+
+    private final ContentAddressedStore store = new ContentAddressedStore(
+            getParameters().getStoreDirectory().get().getAsFile().toPath(),
+            getParameters().getMaxParallelism().get()
+    );
+
+    public static Provider<OsPackageStoreService> registerIfAbsent(Project project) {
+        return project.getGradle().getSharedServices().registerIfAbsent(
+                NAME,
+                OsPackageStoreService.class,
+                spec -> {
+                    final Parameters parameters = spec.getParameters();
+                    parameters.getStoreDirectory().set(
+                            project.getProviders().gradleProperty("co.elastic.docker.os-packages.store")
+                                    .map(path -> project.getRootProject().getLayout().getProjectDirectory().dir(path))
+                                    .orElse(project.getRootProject().getLayout().getBuildDirectory().dir("os-packages"))
+                    );
+                    parameters.getMaxParallelism().set(
+                            project.getProviders().gradleProperty("co.elastic.docker.os-packages.max-parallelism")
+                                    .map(Integer::parseInt)
+                                    .orElse(Runtime.getRuntime().availableProcessors())
+                    );
+                }
+        );
+    }
+
+    /**
+     * Adds the packages to the store and returns the stored files to link from instead.
+     */
+    public List<File> addAll(Collection<File> packages) {
+        return store.addAll(packages);
+    }
+
+    @Override
+    public void close() {
+        store.close();
+        final ContentAddressedStore.Result result = store.getResult();
+        logger.info(
+                "OS package store {}: {} packages already present, {} linked, {} copied",
+                store.getRoot(), result.present(), result.linked(), result.copied()
+        );
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.RetryUtils;
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Uploads the package files exported from an image to the OS package repository.
+ * <p>
+ * Files the repository already has with the same checksum are skipped. The number of concurrent uploads starts low,
+ * grows while the repository keeps up and is halved when it pushes back. The limit and the retries are shared by all
+ * the uploads of an uploader, even when it uploads from multiple directories at the same time.
+ */
+public class PackageUploader {
+
+    private static final Logger logger = Logging.getLogger(PackageUploader.class);
+
+    /**
+     * Total number of retries shared by all the uploads of the uploader, so that a repository outage doesn't result in
+     * every file retrying on its own.
+     */
+    private static final int RETRY_BUDGET = 25;
+
+    public record Result(long uploaded, long skipped, long uploadedBytes) {
+    }
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(30))
+            .build();
+    private final URI baseUri;
+    private final String authorization;
+    private final AdaptiveConcurrency concurrency;
+    private final RetryUtils.RetryBudget retryBudget = new RetryUtils.RetryBudget(RETRY_BUDGET);
+
+    /**
+     * @param baseUri        where the files are uploaded to, keeping their path relative to the exported directory
+     * @param authorization  the value of the Authorization header, or null
+     * @param maxConcurrency the maximum number of files uploaded at the same time
+     */
+    public PackageUploader(URI baseUri, String authorization, int maxConcurrency) {
+        this.baseUri = baseUri;
+        this.authorization = authorization;
+        this.concurrency = new AdaptiveConcurrency(Math.max(1, maxConcurrency));
+    }
+
+    public URI getBaseUri() {
+        return baseUri;
+    }
+
+    public Result upload(Path dir) throws IOException {
+        final List<Path> files;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            files = walk.filter(Files::isRegularFile).sorted().toList();
+        }
+        final AtomicLong uploaded = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final AtomicLong uploadedBytes = new AtomicLong();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency.getMax());
+        try {
+            final List<Future<?>> uploads = new ArrayList<>();
+            for (Path file : files) {
+                uploads.add(executor.submit(() -> {
+                    final URI target = resolve(dir.relativize(file));
+                    final String sha256 = checksum(file, true);
+                    final boolean existed = RetryUtils.retry(() -> {
+                                if (exists(target, sha256)) {
+                                    return true;
+                                }
+                                put(target, file, sha256);
+                                return false;
+                            })
+                            .maxAttempt(6)
+                            .budget(retryBudget)
+                            .exponentialBackoff(1000, 30000)
+                            .onRetryError(error -> logger.warn("Error while uploading {}. Retrying", target, error))
+                            .execute();
+                    if (existed) {
+                        logger.debug("{} is already in the repository", target);
+                        skipped.incrementAndGet();
+                    } else {
+                        uploaded.incrementAndGet();
+                        uploadedBytes.addAndGet(size(file));
+                    }
+                }));
+            }
+            final List<Throwable> failures = new ArrayList<>();
+            for (Future<?> upload : uploads) {
+                try {
+                    upload.get();
+                } catch (ExecutionException e) {
+                    failures.add(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GradleException("Interrupted while uploading packages", e);
+                }
+            }
+            if (!failures.isEmpty()) {
+                final GradleException exception = new GradleException(
+                        "Failed to upload " + failures.size() + " package files to " + baseUri + ": " +
+                        failures.stream().map(Throwable::getMessage).limit(5).collect(Collectors.joining(", "))
+                );
+                failures.forEach(exception::addSuppressed);
+                throw exception;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new Result(uploaded.get(), skipped.get(), uploadedBytes.get());
+    }
+
+    private URI resolve(Path relative) {
+        final String path = baseUri.getPath().replaceAll("/$", "") + "/" +
+                            relative.toString().replace(relative.getFileSystem().getSeparator(), "/");
+        try {
+            return new URI(baseUri.getScheme(), baseUri.getAuthority(), path, null, null);
+        } catch (URISyntaxException e) {
+            throw new GradleException("Can't upload " + relative + " to " + baseUri, e);
+        }
+    }
+
+    private boolean exists(URI target, String sha256) {
+        final HttpResponse<Void> response = send(
+                request(target).method("HEAD", HttpRequest.BodyPublishers.noBody()),
+                HttpResponse.BodyHandlers.discarding()
+        );
+        if (response.statusCode() == 404) {
+            return false;
+        }
+        if (response.statusCode() != 200) {
+            logger.info("Can't check if {} exists, the repository responded with {}", target, response.statusCode());
+            return false;
+        }
+        final Optional<String> existing = response.headers().firstValue("X-Checksum-Sha256");
+        return existing.isPresent() && existing.get().equalsIgnoreCase(sha256);
+    }
+
+    private void put(URI target, Path file, String sha256) {
+        final HttpRequest.Builder request;
+        try {
+            request = request(target)
+                    // Let the repository verify the file was received intact
+                    .header("X-Checksum-Sha256", sha256)
+                    .header("X-Checksum-Sha1", checksum(file, false))
+                    .PUT(HttpRequest.BodyPublishers.ofFile(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        final HttpResponse<String> response = send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() / 100 != 2) {
+            throw new GradleException(
+                    "Uploading " + target + " failed with " + response.statusCode() + ": " + response.body()
+            );
+        }
+    }
+
+    private HttpRequest.Builder request(URI target) {
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(target).timeout(Duration.ofMinutes(10));
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+        return builder;
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest.Builder request, HttpResponse.BodyHandler<T> handler) {
+        concurrency.acquire();
+        boolean throttled = true;
+        try {
+            final HttpResponse<T> response = httpClient.send(request.build(), handler);
+            throttled = response.statusCode() == 429 || response.statusCode() >= 500;
+            return response;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while uploading packages", e);
+        } finally {
+            concurrency.release(throttled);
+        }
+    }
+
+    private static String checksum(Path file, boolean sha256) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(sha256 ? "SHA-256" : "SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Limits the number of requests in flight. The limit grows by one after as many successful requests as the limit,
+     * and is halved whenever a request fails or is throttled.
+     */
+    static class AdaptiveConcurrency {
+        private final int max;
+        private int limit;
+        private int inFlight = 0;
+        private int successes = 0;
+
+        AdaptiveConcurrency(int max) {
+            this.max = max;
+            this.limit = Math.min(max, 4);
+        }
+
+        int getMax() {
+            return max;
+        }
+
+        synchronized int getLimit() {
+            return limit;
+        }
+
+        synchronized void acquire() {
+            while (inFlight >= limit) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GradleException("Interrupted while uploading packages", e);
+                }
+            }
+            inFlight++;
+        }
+
+        synchronized void release(boolean throttled) {
+            inFlight--;
+            if (throttled) {
+                limit = Math.max(1, limit / 2);
+                successes = 0;
+            } else if (++successes >= limit && limit < max) {
+                limit++;
+                successes = 0;
+            }
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Records how long each phase of a task took, and how much data it handled, so that they can be compared across
+ * builds.
+ */
+public class PhaseTimings {
+
+    public interface Phase<T> {
+        T run() throws IOException;
+    }
+
+    public interface VoidPhase {
+        void run() throws IOException;
+    }
+
+    public record Timing(String phase, long durationMs, Map<String, Long> counters) {
+    }
+
+    private final Map<String, Long> durations = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Map<String, Map<String, Long>> counters = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    public <T> T time(String phase, Phase<T> action) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return action.run();
+        } finally {
+            durations.merge(phase, Duration.ofNanos(System.nanoTime() - start).toMillis(), Long::sum);
+        }
+    }
+
+    public void time(String phase, VoidPhase action) throws IOException {
+        time(phase, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    public void count(String phase, String counter, long value) {
+        counters.computeIfAbsent(phase, key -> Collections.synchronizedMap(new LinkedHashMap<>()))
+                .merge(counter, value, Long::sum);
+    }
+
+    public List<Timing> getTimings() {
+        final Set<String> phases = new LinkedHashSet<>();
+        synchronized (durations) {
+            phases.addAll(durations.keySet());
+        }
+        synchronized (counters) {
+            phases.addAll(counters.keySet());
+        }
+        return phases.stream()
+                .map(phase -> new Timing(
+                        phase,
+                        durations.getOrDefault(phase, 0L),
+                        Map.copyOf(counters.getOrDefault(phase, Map.of()))
+                ))
+                .toList();
+    }
+
+    public void write(String taskPath, Path file) throws IOException {
+        final Map<String, Object> json = new LinkedHashMap<>();
+        json.put("task", taskPath);
+        json.put("phases", getTimings());
+        Files.createDirectories(file.getParent());
+        new ObjectMapper()
+                .enable(SerializationFeature.INDENT_OUTPUT)
+                .writeValue(file.toFile(), json);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.Architecture;
+import co.elastic.gradle.utils.RetryUtils;
+import com.google.cloud.tools.jib.api.Credential;
+import com.google.cloud.tools.jib.api.CredentialRetrievalException;
+import com.google.cloud.tools.jib.api.ImageReference;
+import com.google.cloud.tools.jib.api.InvalidImageReferenceException;
+import com.google.cloud.tools.jib.api.LogEvent;
+import com.google.cloud.tools.jib.api.RegistryException;
+import com.google.cloud.tools.jib.event.EventHandlers;
+import com.google.cloud.tools.jib.frontend.CredentialRetrieverFactory;
+import com.google.cloud.tools.jib.http.FailoverHttpClient;
+import com.google.cloud.tools.jib.http.ResponseException;
+import com.google.cloud.tools.jib.image.json.ManifestListTemplate;
+import com.google.cloud.tools.jib.image.json.ManifestTemplate;
+import com.google.cloud.tools.jib.registry.RegistryClient;
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Looks up the per architecture manifest digests of a manifest list directly from the registry, through the registry
+ * client that ships with Jib.
+ * <p>
+ * Each reference is only fetched once, the digests for all architectures are kept for later lookups.
+ */
+public class RegistryManifestClient {
+
+    private static final Logger logger = Logging.getLogger(RegistryManifestClient.class);
+
+    public interface Credentials {
+        Optional<Credential> find(ImageReference reference);
+    }
+
+    private final FailoverHttpClient httpClient = new FailoverHttpClient(
+            false,
+            false,
+            logEvent -> logger.debug(logEvent.getMessage())
+    );
+    // Same as the docker daemon, registries on the local host, e.g. one started for tests, don't need TLS
+    private final FailoverHttpClient localHttpClient = new FailoverHttpClient(
+            true,
+            true,
+            logEvent -> logger.debug(logEvent.getMessage())
+    );
+    private final EventHandlers eventHandlers = EventHandlers.builder()
+            .add(LogEvent.class, logEvent -> logger.debug(logEvent.getMessage()))
+            .build();
+    private final Credentials credentials;
+    private final Map<String, CompletableFuture<Map<Architecture, String>>> digests = new ConcurrentHashMap<>();
+
+    public RegistryManifestClient(Credentials credentials) {
+        this.credentials = credentials;
+    }
+
+    /**
+     * A client using the same credentials as the docker CLI.
+     */
+    public static RegistryManifestClient withDockerConfigCredentials() {
+        return new RegistryManifestClient(reference -> {
+            try {
+                return CredentialRetrieverFactory.forImage(
+                        reference,
+                        event -> logger.debug(event.getMessage())
+                ).dockerConfig().retrieve();
+            } catch (CredentialRetrievalException e) {
+                throw new GradleException("Failed to retrieve credentials for " + reference, e);
+            }
+        });
+    }
+
+    public String getManifestDigest(String reference, Architecture architecture) {
+        final String digest = getManifestDigests(reference).get(architecture);
+        if (digest == null) {
+            // Happens when the tag does not point to a manifest list
+            // We could make this work for a single platform if we really wanted to, for now it's an error
+            throw new GradleException("Can't find a manifest digest for " + architecture.dockerName() + " in " +
+                                      reference + ". Does the image have a manifest list?");
+        }
+        return digest;
+    }
+
+    /**
+     * @return the digest of the manifest for each architecture the manifest list of the reference has
+     */
+    public Map<Architecture, String> getManifestDigests(String reference) {
+        // The first caller fetches the digests, others wait for it outside the map so lookups of other references
+        // are not held up
+        final CompletableFuture<Map<Architecture, String>> created = new CompletableFuture<>();
+        final CompletableFuture<Map<Architecture, String>> existing = digests.putIfAbsent(reference, created);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+        try {
+            final Map<Architecture, String> result = fetchManifestDigestsWithRetries(reference);
+            created.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            // Let a later lookup try again
+            digests.remove(reference, created);
+            created.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private Map<Architecture, String> fetchManifestDigestsWithRetries(String reference) {
+        final ImageReference imageReference;
+        try {
+            imageReference = ImageReference.parse(reference);
+        } catch (InvalidImageReferenceException e) {
+            throw new GradleException("Invalid image reference " + reference, e);
+        }
+        return RetryUtils.retry(() -> {
+                    try {
+                        return fetchManifestDigests(imageReference);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Failed to read the image manifest of " + reference, e);
+                    } catch (RegistryException e) {
+                        throw new GradleException("Failed to read the image manifest of " + reference, e);
+                    }
+                })
+                .maxAttempt(3)
+                .exponentialBackoff(1000, 30000)
+                .retryOn(RegistryManifestClient::isRetriable)
+                .onRetryError(error -> logger.warn("Error while reading manifest of {}. Retrying", reference, error))
+                .execute();
+    }
+
+    /**
+     * Only failures to reach the registry and server errors can go away on their own, registry errors like missing
+     * credentials or an unknown manifest won't.
+     */
+    private static boolean isRetriable(Exception exception) {
+        if (!(exception instanceof UncheckedIOException e)) {
+            return false;
+        }
+        return !(e.getCause() instanceof ResponseException response) || response.getStatusCode() >= 500;
+    }
+
+    private Map<Architecture, String> fetchManifestDigests(ImageReference reference)
+            throws IOException, RegistryException {
+        final ManifestTemplate manifest = newRegistryClient(reference)
+                .pullManifest(reference.getQualifier())
+                .getManifest();
+        final Map<Architecture, String> result = new EnumMap<>(Architecture.class);
+        if (manifest instanceof ManifestListTemplate manifestList) {
+            for (Architecture architecture : Architecture.values()) {
+                // Attestations have an unknown platform, so these are skipped too
+                final List<String> platformDigests = manifestList.getDigestsForPlatform(
+                        architecture.dockerName(),
+                        "linux"
+                );
+                if (!platformDigests.isEmpty()) {
+                    result.put(architecture, platformDigests.get(0));
+                }
+            }
+        }
+        logger.info("Manifest digests of {}: {}", reference, result);
+        return result;
+    }
+
+    private RegistryClient newRegistryClient(ImageReference reference) throws IOException, RegistryException {
+        final Optional<Credential> credential = credentials.find(reference);
+        final RegistryClient client = RegistryClient.factory(
+                        eventHandlers,
+                        reference.getRegistry(),
+                        reference.getRepository(),
+                        isLocal(reference.getRegistry()) ? localHttpClient : httpClient
+                )
+                .setCredential(credential.orElse(null))
+                .newRegistryClient();
+        if (!client.doPullBearerAuth() && credential.isPresent()) {
+            client.configureBasicAuth();
+        }
+        return client;
+    }
+
+    private static boolean isLocal(String registry) {
+        final String host = registry.split(":", 2)[0];
+        return host.equals("localhost") || host.equals("127.0.0.1");
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.Architecture;
+import org.gradle.api.Project;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+/**
+ * Shares manifest digest lookups across all the tasks of a build, so each image is only looked up in the registry once.
+ */
+public abstract class RegistryManifestService implements BuildService<BuildServiceParameters.None> {
+
+    public static final String NAME = "registryManifests";
+
+    private final RegistryManifestClient client = RegistryManifestClient.withDockerConfigCredentials();
+
+    public static Provider<RegistryManifestService> registerIfAbsent(Project project) {
+        return project.getGradle().getSharedServices().registerIfAbsent(
+                NAME,
+                RegistryManifestService.class,
+                spec -> {
+                }
+        );
+    }
+
+    public String getManifestDigest(String reference, Architecture architecture) {
+        return client.getManifestDigest(reference, architecture);
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import org.apache.commons.compress.archivers.ar.ArArchiveEntry;
+import org.apache.commons.compress.archivers.ar.ArArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.gradle.api.GradleException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Generates the metadata of the repository that OS packages are installed from when the image is isolated from
+ * external repositories.
+ * <p>
+ * The metadata is written on the host, once per build, and covers exactly the locked packages, so install steps don't
+ * need to prepare it. Debian and Ubuntu get a {@code Packages.gz} and Wolfi an {@code APKINDEX.tar.gz}, generated from
+ * the packages themselves. Generating yum repodata requires parsing the rpm headers of the packages, so for CentOS the
+ * repodata that was locked along the packages is unpacked instead.
+ */
+public class RepositoryIndex {
+
+    public static final String META_PREFIX = "__META__";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Writes the metadata for the packages in the directory.
+     *
+     * @return the number of packages covered
+     */
+    public static int write(OSDistribution distribution, Path packagesDir) throws IOException {
+        return switch (distribution) {
+            case DEBIAN, UBUNTU -> writeDebianIndex(packagesDir);
+            case CENTOS -> unpackRepodata(packagesDir);
+            case WOLFI -> writeApkIndex(packagesDir);
+        };
+    }
+
+    static int writeDebianIndex(Path packagesDir) throws IOException {
+        final List<Path> packages = listPackages(packagesDir, ".deb");
+        final StringBuilder index = new StringBuilder();
+        for (Path deb : packages) {
+            final Digests digests = Digests.of(deb);
+            index.append(readDebianControl(deb).strip()).append("\n")
+                    .append("Filename: ./").append(deb.getFileName()).append("\n")
+                    .append("Size: ").append(Files.size(deb)).append("\n")
+                    .append("MD5sum: ").append(digests.md5()).append("\n")
+                    .append("SHA1: ").append(digests.sha1()).append("\n")
+                    .append("SHA256: ").append(digests.sha256()).append("\n")
+                    .append("\n");
+        }
+        writeAtomically(packagesDir.resolve("Packages.gz"), out -> {
+            try (OutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(index.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        return packages.size();
+    }
+
+    static String readDebianControl(Path deb) throws IOException {
+        try (ArArchiveInputStream ar = new ArArchiveInputStream(new BufferedInputStream(Files.newInputStream(deb)))) {
+            ArArchiveEntry entry;
+            while ((entry = ar.getNextEntry()) != null) {
+                final String name = entry.getName().replaceAll("/$", "");
+                if (!name.startsWith("control.tar")) {
+                    continue;
+                }
+                final InputStream control = switch (name) {
+                    case "control.tar" -> ar;
+                    case "control.tar.gz" -> new GzipCompressorInputStream(ar);
+                    case "control.tar.xz" -> new XZCompressorInputStream(ar);
+                    case "control.tar.zst" -> new ZstdCompressorInputStream(ar);
+                    default -> throw new GradleException("Unsupported control archive " + name + " in " + deb);
+                };
+                final String content = readFromTar(control, "control");
+                if (content == null) {
+                    break;
+                }
+                return content;
+            }
+        }
+        throw new GradleException("No control file found in " + deb);
+    }
+
+    static int writeApkIndex(Path packagesDir) throws IOException {
+        final List<Path> packages = listPackages(packagesDir, ".apk");
+        final StringBuilder index = new StringBuilder();
+        for (Path apk : packages) {
+            index.append(apkIndexEntry(apk)).append("\n");
+        }
+        final byte[] content = index.toString().getBytes(StandardCharsets.UTF_8);
+        writeAtomically(packagesDir.resolve("APKINDEX.tar.gz"), out -> {
+            try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(out))) {
+                final TarArchiveEntry entry = new TarArchiveEntry("APKINDEX");
+                entry.setSize(content.length);
+                entry.setModTime(0);
+                tar.putArchiveEntry(entry);
+                tar.write(content);
+                tar.closeArchiveEntry();
+            }
+        });
+        return packages.size();
+    }
+
+    /**
+     * An apk is a concatenation of gzip streams: an optional signature, the control section holding {@code .PKGINFO}
+     * and the data. The index identifies packages by the SHA-1 of the compressed control section.
+     */
+    static String apkIndexEntry(Path apk) throws IOException {
+        try (FileChannel channel = FileChannel.open(apk, StandardOpenOption.READ)) {
+            long offset = 0;
+            // Only the signature may come before the control section
+            for (int section = 0; section < 2; section++) {
+                final GzipSection gzip = GzipSection.read(channel, offset);
+                final String pkgInfo = readFromTar(new ByteArrayInputStream(gzip.content()), ".PKGINFO");
+                if (pkgInfo != null) {
+                    return apkIndexEntry(pkgInfo, "Q1" + Base64.getEncoder().encodeToString(gzip.sha1(channel)), channel.size());
+                }
+                offset = gzip.end();
+            }
+        }
+        throw new GradleException("No .PKGINFO found in " + apk);
+    }
+
+    private static String apkIndexEntry(String pkgInfo, String checksum, long size) {
+        final Map<String, List<String>> fields = new HashMap<>();
+        for (String line : pkgInfo.split("\n")) {
+            if (line.isBlank() || line.startsWith("#") || !line.contains("=")) {
+                continue;
+            }
+            final int separator = line.indexOf('=');
+            fields.computeIfAbsent(line.substring(0, separator).trim(), key -> new ArrayList<>())
+                    .add(line.substring(separator + 1).trim());
+        }
+        final StringBuilder entry = new StringBuilder();
+        entry.append("C:").append(checksum).append("\n");
+        appendApkField(entry, "P", fields.get("pkgname"));
+        appendApkField(entry, "V", fields.get("pkgver"));
+        appendApkField(entry, "A", fields.get("arch"));
+        entry.append("S:").append(size).append("\n");
+        appendApkField(entry, "I", fields.get("size"));
+        appendApkField(entry, "T", fields.get("pkgdesc"));
+        appendApkField(entry, "U", fields.get("url"));
+        appendApkField(entry, "L", fields.get("license"));
+        appendApkField(entry, "o", fields.get("origin"));
+        appendApkField(entry, "m", fields.get("maintainer"));
+        appendApkField(entry, "t", fields.get("builddate"));
+        appendApkField(entry, "c", fields.get("commit"));
+        appendApkField(entry, "k", fields.get("provider_priority"));
+        appendApkField(entry, "D", fields.get("depend"));
+        appendApkField(entry, "p", fields.get("provides"));
+        appendApkField(entry, "i", fields.get("install_if"));
+        appendApkField(entry, "r", fields.get("replaces"));
+        return entry.toString();
+    }
+
+    private static void appendApkField(StringBuilder entry, String key, List<String> values) {
+        if (values != null && !values.isEmpty()) {
+            entry.append(key).append(":").append(String.join(" ", values)).append("\n");
+        }
+    }
+
+    /**
+     * Unpacks the repodata that was locked along the packages, rather than in every install step.
+     */
+    static int unpackRepodata(Path packagesDir) throws IOException {
+        final List<Path> repodata = listPackages(packagesDir, ".tar").stream()
+                .filter(path -> path.getFileName().toString().startsWith(META_PREFIX + "repodata"))
+                .toList();
+        if (repodata.size() != 1) {
+            throw new GradleException("Expected the lockfile to have exactly one repodata archive but found " + repodata);
+        }
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new BufferedInputStream(Files.newInputStream(repodata.get(0))))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                final Path destination = packagesDir.resolve(entry.getName()).normalize();
+                if (!destination.startsWith(packagesDir.resolve("repodata"))) {
+                    throw new GradleException("Unexpected entry " + entry.getName() + " in " + repodata.get(0));
+                }
+                if (entry.isDirectory()) {
+                    Files.createDirectories(destination);
+                } else {
+                    Files.createDirectories(destination.getParent());
+                    Files.copy(tar, destination, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        return listPackages(packagesDir, ".rpm").size();
+    }
+
+    private static List<Path> listPackages(Path packagesDir, String extension) throws IOException {
+        try (Stream<Path> files = Files.list(packagesDir)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(extension))
+                    .filter(Files::isRegularFile)
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static String readFromTar(InputStream in, String fileName) throws IOException {
+        final TarArchiveInputStream tar = new TarArchiveInputStream(in);
+        TarArchiveEntry entry;
+        while ((entry = tar.getNextEntry()) != null) {
+            if (entry.getName().replaceFirst("^\\./", "").equals(fileName)) {
+                return new String(tar.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static void writeAtomically(Path file, Writer writer) throws IOException {
+        final Path tmp = Files.createTempFile(file.getParent(), ".", ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            writer.write(out);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private record Digests(String md5, String sha1, String sha256) {
+        static Digests of(Path file) throws IOException {
+            final MessageDigest md5 = messageDigest("MD5");
+            final MessageDigest sha1 = messageDigest("SHA-1");
+            final MessageDigest sha256 = messageDigest("SHA-256");
+            try (InputStream in = Files.newInputStream(file)) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    md5.update(buffer, 0, read);
+                    sha1.update(buffer, 0, read);
+                    sha256.update(buffer, 0, read);
+                }
+            }
+            final HexFormat hex = HexFormat.of();
+            return new Digests(hex.formatHex(md5.digest()), hex.formatHex(sha1.digest()), hex.formatHex(sha256.digest()));
+        }
+    }
+
+    private static MessageDigest messageDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A single gzip stream at a known offset of a file, with its content.
+     */
+    private record GzipSection(long start, long end, byte[] content) {
+
+        private static final int FEXTRA = 4, FNAME = 8, FCOMMENT = 16, FHCRC = 2;
+
+        static GzipSection read(FileChannel channel, long start) throws IOException {
+            final ByteBuffer header = ByteBuffer.allocate(BUFFER_SIZE);
+            channel.read(header, start);
+            header.flip();
+            if (header.remaining() < 10 || (header.get() & 0xff) != 0x1f || (header.get() & 0xff) != 0x8b) {
+                throw new GradleException("Not a gzip stream at offset " + start);
+            }
+            header.get();
+            final int flags = header.get() & 0xff;
+            header.position(10);
+            if ((flags & FEXTRA) != 0) {
+                final int length = (header.get() & 0xff) | (header.get() & 0xff) << 8;
+                header.position(header.position() + length);
+            }
+            for (int flag : new int[]{FNAME, FCOMMENT}) {
+                if ((flags & flag) != 0) {
+                    while (header.get() != 0) {
+                        // skip the zero terminated string
+                    }
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                header.position(header.position() + 2);
+            }
+            final long headerSize = header.position();
+
+            final Inflater inflater = new Inflater(true);
+            try {
+                final ByteArrayOutputStream content = new ByteArrayOutputStream();
+                final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+                final byte[] output = new byte[BUFFER_SIZE];
+                long position = start + headerSize;
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        input.clear();
+                        final int read = channel.read(input, position);
+                        if (read < 0) {
+                            throw new EOFException("Truncated gzip stream at offset " + start);
+                        }
+                        position += read;
+                        inflater.setInput(input.array(), 0, read);
+                    }
+                    content.write(output, 0, inflater.inflate(output));
+                }
+                // The deflate data is followed by the CRC and size of the content
+                final long end = start + headerSize + inflater.getBytesRead() + 8;
+                return new GzipSection(start, end, content.toByteArray());
+            } catch (DataFormatException e) {
+                throw new GradleException("Invalid gzip stream at offset " + start, e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        byte[] sha1(FileChannel channel) throws IOException {
+            final MessageDigest digest = messageDigest("SHA-1");
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = start;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - position));
+                final int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Truncated gzip stream at offset " + start);
+                }
+                digest.update(buffer.array(), 0, read);
+                position += read;
+            }
+            return digest.digest();
+        }
+    }
+}
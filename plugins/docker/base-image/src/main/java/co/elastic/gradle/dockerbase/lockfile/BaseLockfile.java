@@ -32,6 +32,8 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.Serializable;
 import java.io.Writer;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 
 public record BaseLockfile(
@@ -53,6 +55,22 @@ public record BaseLockfile(
         return image;
     }
 
+    /**
+     * What changed in the packages of each architecture compared to an older lockfile. Architectures that are not in
+     * this lockfile are left out.
+     */
+    public Map<Architecture, PackagesDiff> diff(BaseLockfile older) {
+        final Map<Architecture, PackagesDiff> result = new EnumMap<>(Architecture.class);
+        packages.forEach((architecture, current) -> result.put(
+                architecture,
+                PackagesDiff.between(
+                        older.getPackages().getOrDefault(architecture, new Packages(List.of())),
+                        current
+                )
+        ));
+        return result;
+    }
+
     public static BaseLockfile parse(Reader reader) throws IOException {
         ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
         return mapper.readValue(reader, BaseLockfile.class);
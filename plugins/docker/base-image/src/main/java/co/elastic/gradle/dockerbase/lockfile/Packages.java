@@ -19,36 +19,62 @@
 package co.elastic.gradle.dockerbase.lockfile;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import org.gradle.api.tasks.Nested;
 import org.gradle.util.internal.VersionNumber;
 
 import java.io.Serializable;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.Set;
-import java.util.stream.Collectors;
 
-public record Packages(
-        List<UnchangingPackage> packages
-) implements Serializable {
+/**
+ * The packages of a single architecture in the lockfile, indexed by name.
+ */
+public final class Packages implements Serializable {
+
+    private final List<UnchangingPackage> packages;
+    private transient Map<String, UnchangingPackage> byName;
 
     @JsonCreator
-    public Packages {
-        if (packages.size() != getUniquePackagesWithMaxVersion(packages).size()) {
-            throw new IllegalStateException("Multiple packages have the same name");
+    public Packages(@JsonProperty("packages") List<UnchangingPackage> packages) {
+        this.packages = List.copyOf(packages);
+        this.byName = index(this.packages);
+    }
+
+    private static Map<String, UnchangingPackage> index(List<UnchangingPackage> packages) {
+        final Map<String, UnchangingPackage> index = new LinkedHashMap<>();
+        for (UnchangingPackage each : packages) {
+            if (index.put(each.getName(), each) != null) {
+                throw new IllegalStateException("Multiple packages have the same name: " + each.getName());
+            }
         }
+        return Collections.unmodifiableMap(index);
     }
 
+    /**
+     * Keeps a single package for each name, the one with the highest version, in the order the names first appear.
+     */
     public static List<UnchangingPackage> getUniquePackagesWithMaxVersion(List<UnchangingPackage> packages) {
-        final Set<String> nameSet = packages.stream().map(UnchangingPackage::getName)
-                .collect(Collectors.toSet());
-        return nameSet.stream()
-                .map(name -> packages.stream().filter(pkg -> pkg.name().equals(name)).toList())
-                .map(list -> list.stream()
-                        .max(Comparator.comparing(a -> VersionNumber.parse(a.getVersion())))
-                        .orElseThrow(IllegalStateException::new))
-                .toList();
+        final Map<String, UnchangingPackage> unique = new LinkedHashMap<>();
+        final Map<String, VersionNumber> versions = new LinkedHashMap<>();
+        for (UnchangingPackage each : packages) {
+            final VersionNumber version = VersionNumber.parse(each.getVersion());
+            final VersionNumber current = versions.get(each.getName());
+            if (current == null || version.compareTo(current) > 0) {
+                unique.put(each.getName(), each);
+                versions.put(each.getName(), version);
+            }
+        }
+        return new ArrayList<>(unique.values());
+    }
+
+    public List<UnchangingPackage> packages() {
+        return packages;
     }
 
     @Nested
@@ -57,10 +83,31 @@ public record Packages(
     }
 
     public Optional<UnchangingPackage> findByName(String name) {
-        return getPackages()
-                .stream()
-                .filter(each -> each.getName().equals(name))
-                .findFirst();
+        return Optional.ofNullable(lookup().get(name));
     }
 
+    private Map<String, UnchangingPackage> lookup() {
+        // The index is not serialized, rebuild it on first use after deserialization
+        if (byName == null) {
+            byName = index(packages);
+        }
+        return byName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return packages.equals(((Packages) o).packages);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(packages);
+    }
+
+    @Override
+    public String toString() {
+        return "Packages[packages=" + packages + "]";
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase.lockfile;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * What changed in the packages of an architecture between two versions of the lockfile.
+ */
+public record PackagesDiff(
+        List<UnchangingPackage> added,
+        List<UnchangingPackage> removed,
+        List<Change> changed
+) {
+
+    public record Change(UnchangingPackage before, UnchangingPackage after) {
+    }
+
+    public static PackagesDiff between(Packages before, Packages after) {
+        final List<UnchangingPackage> added = new ArrayList<>();
+        final List<UnchangingPackage> removed = new ArrayList<>();
+        final List<Change> changed = new ArrayList<>();
+        for (UnchangingPackage each : after.getPackages()) {
+            final Optional<UnchangingPackage> previous = before.findByName(each.getName());
+            if (previous.isEmpty()) {
+                added.add(each);
+            } else if (!previous.get().equals(each)) {
+                changed.add(new Change(previous.get(), each));
+            }
+        }
+        for (UnchangingPackage each : before.getPackages()) {
+            if (after.findByName(each.getName()).isEmpty()) {
+                removed.add(each);
+            }
+        }
+        added.sort(Comparator.comparing(UnchangingPackage::getName));
+        removed.sort(Comparator.comparing(UnchangingPackage::getName));
+        changed.sort(Comparator.comparing(change -> change.after().getName()));
+        return new PackagesDiff(List.copyOf(added), List.copyOf(removed), List.copyOf(changed));
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    /**
+     * One line per package, prefixed with +, - or ~ for added, removed and changed packages.
+     */
+    public List<String> describe() {
+        final List<String> lines = new ArrayList<>();
+        added.forEach(each -> lines.add("+ " + each.getName() + " " + describeVersion(each)));
+        removed.forEach(each -> lines.add("- " + each.getName() + " " + describeVersion(each)));
+        changed.forEach(change -> lines.add(
+                "~ " + change.after().getName() + " " + describeVersion(change.before()) +
+                " -> " + describeVersion(change.after())
+        ));
+        return lines;
+    }
+
+    private static String describeVersion(UnchangingPackage pkg) {
+        return pkg.getRelease() == null || pkg.getRelease().isEmpty() ?
+                pkg.getVersion() :
+                pkg.getVersion() + "-" + pkg.getRelease();
+    }
+}
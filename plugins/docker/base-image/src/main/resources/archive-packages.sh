@@ -1,5 +1,15 @@
 #!/usr/bin/env -e bash
 
+# The packages are uploaded from the host, here they are only collected in a directory that is copied out of the
+# container
+EXPORT_DIR="${EXPORT_DIR:-/var/export}"
+
+function export_packages() {
+  mkdir -p "$EXPORT_DIR"
+  # Keep the directory structure, it's the same as in the repository
+  find . -type f -name '*.*' | tar -cf - -T - | tar -xf - -C "$EXPORT_DIR"
+}
+
 function archive_yum_packages() {
   mkdir -p /var/rpms
   cd /var/rpms
@@ -35,10 +45,7 @@ function archive_yum_packages() {
 
   mv repodata.tar "__META__repodata-${REPODATA_VERSION}-meta.${REPODATA_ARCH}.tar"
 
-  # shellcheck disable=SC2086
-  CI=TRUE /mnt/jfrog-cli rt upload \
-      $JFROG_CLI_ARGS \
-      "*.*" . >&2
+  export_packages
 
   echo "__META__repodata,$REPODATA_VERSION,meta,$REPODATA_ARCH"
 }
@@ -52,7 +59,7 @@ function archive_apt_packages() {
   cd /tmp/packages
   mv /var/cache/apt/archives/*.deb .
 
-  # Rename some files that have url encoded `:` in their name as jfrog cli would otherwise double encode them
+  # Rename some files that have url encoded `:` in their name as they would otherwise be double encoded when uploaded
   for name in $(find . -name '*%*'); do mv "$name" "$(echo $name | sed s/%3a/./g)"; done
 
   # We have to rename the packages to match how these will be called in the Gradle configuration so the metadata that we
@@ -77,10 +84,7 @@ function archive_apt_packages() {
 
   mv Packages.gz "__META__Packages-${PACKAGES_VERSION}-${PACKAGES_ARCH}.gz"
 
-  # shellcheck disable=SC2086
-  CI=TRUE /mnt/jfrog-cli rt upload \
-    $JFROG_CLI_ARGS \
-    "*.*" . >&2
+  export_packages
 
   echo "__META__Packages,$PACKAGES_VERSION,,$PACKAGES_ARCH"
 }
@@ -152,11 +156,7 @@ archive_apk_packages() {
   mv Packages.gz "__META__Packages-${PACKAGES_VERSION}.gz"
 
   cd "/var/cache/apk/archives/"
-  # Upload the packages using jfrog-cli
-  # shellcheck disable=SC2086
-  CI=TRUE /mnt/jfrog-cli rt upload \
-    $JFROG_CLI_ARGS \
-    "*.*" . >&2
+  export_packages
 }
 
 
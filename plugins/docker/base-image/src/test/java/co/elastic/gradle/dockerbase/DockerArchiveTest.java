@@ -0,0 +1,125 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DockerArchiveTest {
+
+    private static final String MANIFEST = """
+            [{"Config":"config.json","RepoTags":null,"Layers":["base/layer.tar","app/layer.tar","base/layer.tar","top/layer.tar"]}]
+            """;
+
+    private static final String CONFIG = """
+            {"created":"2024-01-01T00:00:00Z","rootfs":{"type":"layers","diff_ids":["sha256:a","sha256:b","sha256:a","sha256:c"]}}
+            """;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void readsTheMetadata() throws IOException {
+        final DockerArchive archive = DockerArchive.read(writeArchive());
+
+        assertEquals(List.of("base/layer.tar", "app/layer.tar", "base/layer.tar", "top/layer.tar"), archive.layers());
+        assertEquals(List.of("sha256:a", "sha256:b", "sha256:a", "sha256:c"), archive.getDiffIds());
+        assertEquals("2024-01-01T00:00:00Z", archive.getCreated());
+    }
+
+    @Test
+    void leavesOutSkippedLayers() throws IOException {
+        final DockerArchive archive = DockerArchive.read(writeArchive());
+
+        final Map<String, String> content = writeWithoutLayers(archive, 2);
+
+        // base/layer.tar is skipped but referenced again later on, so it has to stay in the archive
+        assertEquals(List.of("base/layer.tar", "top/layer.tar", "config.json", "manifest.json"), List.copyOf(content.keySet()));
+        assertEquals("base", content.get("base/layer.tar"));
+        assertEquals("top", content.get("top/layer.tar"));
+        assertEquals(MANIFEST, content.get("manifest.json"));
+        assertEquals(CONFIG, content.get("config.json"));
+    }
+
+    @Test
+    void keepsEverythingWithoutSkippedLayers() throws IOException {
+        final DockerArchive archive = DockerArchive.read(writeArchive());
+
+        assertEquals(
+                List.of("base/layer.tar", "app/layer.tar", "top/layer.tar", "config.json", "manifest.json"),
+                List.copyOf(writeWithoutLayers(archive, 0).keySet())
+        );
+        assertEquals(
+                List.of("config.json", "manifest.json"),
+                List.copyOf(writeWithoutLayers(archive, 4).keySet())
+        );
+    }
+
+    private Path writeArchive() throws IOException {
+        final Path archive = tempDir.resolve("image.tar");
+        try (OutputStream out = Files.newOutputStream(archive);
+             TarArchiveOutputStream tar = new TarArchiveOutputStream(out)) {
+            // Like `docker save`, the metadata comes after the layers
+            addEntry(tar, "base/layer.tar", "base");
+            addEntry(tar, "app/layer.tar", "app");
+            addEntry(tar, "top/layer.tar", "top");
+            addEntry(tar, "config.json", CONFIG);
+            addEntry(tar, "manifest.json", MANIFEST);
+        }
+        return archive;
+    }
+
+    private static void addEntry(TarArchiveOutputStream tar, String name, String content) throws IOException {
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        final TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        tar.putArchiveEntry(entry);
+        tar.write(bytes);
+        tar.closeArchiveEntry();
+    }
+
+    private static Map<String, String> writeWithoutLayers(DockerArchive archive, int skippedLayers) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archive.writeWithoutLayers(skippedLayers, out);
+        final Map<String, String> content = new LinkedHashMap<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                content.put(entry.getName(), new String(tar.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        return content;
+    }
+}
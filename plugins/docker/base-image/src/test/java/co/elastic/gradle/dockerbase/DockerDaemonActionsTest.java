@@ -18,15 +18,45 @@
  */
 package co.elastic.gradle.dockerbase;
 
-import org.junit.jupiter.api.BeforeEach;
+import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
+import co.elastic.gradle.utils.docker.instruction.Env;
+import co.elastic.gradle.utils.docker.instruction.Install;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class DockerDaemonActionsTest {
 
-    @BeforeEach
-    void setUp() {
+    @Test
+    void mergeConsecutiveInstalls() {
+        final Env env = new Env("DEBIAN_FRONTEND", "noninteractive");
+        final List<ContainerImageBuildInstruction> merged = DockerDaemonActions.mergeConsecutiveInstalls(List.of(
+                new Install(List.of("curl")),
+                new Install(List.of("jq", "curl")),
+                env,
+                new Install(List.of("patch")),
+                new Install(List.of("libc6", "zlib1g"))
+        ));
+
+        assertEquals(
+                List.of(
+                        new Install(List.of("curl", "jq")),
+                        env,
+                        new Install(List.of("patch", "libc6", "zlib1g"))
+                ),
+                merged
+        );
     }
 
-    // TODO: Implement tests when implementing the docker base plugin that uses this so we avoid creating tests for possibly deda code
-}
\ No newline at end of file
+    @Test
+    void mergeConsecutiveInstallsKeepsOtherInstructions() {
+        final Env first = new Env("A", "1");
+        final Env second = new Env("B", "2");
+        assertEquals(
+                List.of(first, second),
+                DockerDaemonActions.mergeConsecutiveInstalls(List.of(first, second))
+        );
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PackageUploaderTest {
+
+    private HttpServer server;
+    private final Map<String, byte[]> repository = new ConcurrentHashMap<>();
+    private final List<String> uploads = new CopyOnWriteArrayList<>();
+    private final Set<String> failingHeads = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    void startRepository() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/repo/", exchange -> {
+            final String path = exchange.getRequestURI().getPath();
+            switch (exchange.getRequestMethod()) {
+                case "HEAD" -> {
+                    if (failingHeads.remove(path)) {
+                        // Drops the connection without a response
+                        throw new IOException("Failing " + path);
+                    }
+                    final byte[] existing = repository.get(path);
+                    if (existing == null) {
+                        exchange.sendResponseHeaders(404, -1);
+                    } else {
+                        exchange.getResponseHeaders().add("X-Checksum-Sha256", sha256(existing));
+                        exchange.sendResponseHeaders(200, -1);
+                    }
+                }
+                case "PUT" -> {
+                    final byte[] body = exchange.getRequestBody().readAllBytes();
+                    assertEquals(sha256(body), exchange.getRequestHeaders().getFirst("X-Checksum-Sha256"));
+                    assertEquals("Basic dXNlcjpwYXNz", exchange.getRequestHeaders().getFirst("Authorization"));
+                    repository.put(path, body);
+                    uploads.add(path);
+                    exchange.sendResponseHeaders(201, -1);
+                }
+                default -> exchange.sendResponseHeaders(405, -1);
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopRepository() {
+        server.stop(0);
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private PackageUploader uploader() {
+        return new PackageUploader(
+                URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/repo/ubuntu"),
+                "Basic dXNlcjpwYXNz",
+                4
+        );
+    }
+
+    @Test
+    void uploadsOnlyMissingOrChangedFiles(@TempDir Path dir) throws IOException {
+        Files.createDirectories(dir.resolve("x86_64"));
+        Files.writeString(dir.resolve("jq-1.6-amd64.deb"), "jq");
+        Files.writeString(dir.resolve("curl-7.68-amd64.deb"), "curl");
+        Files.writeString(dir.resolve("x86_64/patch-2.7.apk"), "patch");
+        repository.put("/repo/ubuntu/jq-1.6-amd64.deb", "jq".getBytes(StandardCharsets.UTF_8));
+        repository.put("/repo/ubuntu/curl-7.68-amd64.deb", "older curl".getBytes(StandardCharsets.UTF_8));
+
+        final PackageUploader.Result result = uploader().upload(dir);
+
+        assertEquals(2, result.uploaded());
+        assertEquals(1, result.skipped());
+        assertEquals("curl".length() + "patch".length(), result.uploadedBytes());
+        assertEquals(
+                List.of("/repo/ubuntu/curl-7.68-amd64.deb", "/repo/ubuntu/x86_64/patch-2.7.apk"),
+                uploads.stream().sorted().toList()
+        );
+
+        uploads.clear();
+        final PackageUploader.Result again = uploader().upload(dir);
+        assertEquals(0, again.uploaded());
+        assertEquals(3, again.skipped());
+        assertTrue(uploads.isEmpty(), "Expected nothing to be uploaded but got " + uploads);
+    }
+
+    @Test
+    void retriesCheckingIfFilesExist(@TempDir Path dir) throws IOException {
+        Files.writeString(dir.resolve("jq-1.6-amd64.deb"), "jq");
+        Files.writeString(dir.resolve("curl-7.68-amd64.deb"), "curl");
+        repository.put("/repo/ubuntu/jq-1.6-amd64.deb", "jq".getBytes(StandardCharsets.UTF_8));
+        failingHeads.add("/repo/ubuntu/jq-1.6-amd64.deb");
+        failingHeads.add("/repo/ubuntu/curl-7.68-amd64.deb");
+
+        final PackageUploader.Result result = uploader().upload(dir);
+
+        assertEquals(1, result.uploaded());
+        assertEquals(1, result.skipped());
+        assertTrue(failingHeads.isEmpty(), "Expected all checks to have been tried");
+        assertEquals(List.of("/repo/ubuntu/curl-7.68-amd64.deb"), uploads);
+    }
+
+    @Test
+    void adaptsConcurrency() {
+        final PackageUploader.AdaptiveConcurrency concurrency = new PackageUploader.AdaptiveConcurrency(8);
+        assertEquals(4, concurrency.getLimit());
+        for (int i = 0; i < 4; i++) {
+            concurrency.acquire();
+            concurrency.release(false);
+        }
+        assertEquals(5, concurrency.getLimit());
+        concurrency.acquire();
+        concurrency.release(true);
+        assertEquals(2, concurrency.getLimit());
+        for (int i = 0; i < 100; i++) {
+            concurrency.acquire();
+            concurrency.release(false);
+        }
+        assertEquals(8, concurrency.getLimit());
+    }
+}
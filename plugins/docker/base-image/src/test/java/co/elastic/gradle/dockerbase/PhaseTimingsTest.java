@@ -0,0 +1,103 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PhaseTimingsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void listsTimedPhasesInOrderThenCountedOnes() throws IOException {
+        final PhaseTimings timings = new PhaseTimings();
+        timings.time("sync", () -> {
+        });
+        timings.count("upload", "files", 1);
+        assertEquals("built", timings.time("build", () -> "built"));
+
+        assertEquals(
+                List.of("sync", "build", "upload"),
+                timings.getTimings().stream().map(PhaseTimings.Timing::phase).toList()
+        );
+    }
+
+    @Test
+    void addsUpRepeatedPhasesAndCounters() throws IOException {
+        final PhaseTimings timings = new PhaseTimings();
+        timings.time("upload", () -> sleep(5));
+        timings.time("upload", () -> sleep(5));
+        timings.count("upload", "files", 2);
+        timings.count("upload", "files", 3);
+        timings.count("upload", "bytes", 10);
+
+        final PhaseTimings.Timing upload = timings.getTimings().get(0);
+        assertTrue(upload.durationMs() >= 10, "Expected at least 10ms but was " + upload.durationMs());
+        assertEquals(Map.of("files", 5L, "bytes", 10L), upload.counters());
+    }
+
+    @Test
+    void recordsPhasesThatFail() {
+        final PhaseTimings timings = new PhaseTimings();
+        assertThrows(IOException.class, () -> timings.time("build", () -> {
+            throw new IOException("failed");
+        }));
+
+        assertEquals(List.of("build"), timings.getTimings().stream().map(PhaseTimings.Timing::phase).toList());
+    }
+
+    @Test
+    void writesJson() throws IOException {
+        final PhaseTimings timings = new PhaseTimings();
+        timings.time("build", () -> {
+        });
+        timings.count("build", "compressed-bytes", 42);
+        final Path file = tempDir.resolve("timings/task.timings.json");
+
+        timings.write(":image:dockerBaseImageBuild", file);
+
+        final JsonNode json = new ObjectMapper().readTree(file.toFile());
+        assertEquals(":image:dockerBaseImageBuild", json.get("task").asText());
+        assertEquals(1, json.get("phases").size());
+        final JsonNode build = json.get("phases").get(0);
+        assertEquals("build", build.get("phase").asText());
+        assertTrue(build.get("durationMs").isNumber());
+        assertEquals(42, build.get("counters").get("compressed-bytes").asLong());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.Architecture;
+import com.google.cloud.tools.jib.api.Credential;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.gradle.api.GradleException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegistryManifestClientTest {
+
+    private static final String AMD64 = "sha256:" + "a".repeat(64);
+    private static final String ARM64 = "sha256:" + "b".repeat(64);
+
+    private static final String MANIFEST_LIST = """
+            {
+              "schemaVersion": 2,
+              "mediaType": "application/vnd.docker.distribution.manifest.list.v2+json",
+              "manifests": [
+                {
+                  "mediaType": "application/vnd.docker.distribution.manifest.v2+json", "size": 1,
+                  "digest": "%s", "platform": {"architecture": "amd64", "os": "linux"}
+                },
+                {
+                  "mediaType": "application/vnd.docker.distribution.manifest.v2+json", "size": 1,
+                  "digest": "%s", "platform": {"architecture": "arm64", "os": "linux", "variant": "v8"}
+                },
+                {
+                  "mediaType": "application/vnd.docker.distribution.manifest.v2+json", "size": 1,
+                  "digest": "sha256:%s", "platform": {"architecture": "s390x", "os": "linux"}
+                },
+                {
+                  "mediaType": "application/vnd.docker.distribution.manifest.v2+json", "size": 1,
+                  "digest": "sha256:%s", "platform": {"architecture": "unknown", "os": "unknown"}
+                }
+              ]
+            }
+            """.formatted(AMD64, ARM64, "c".repeat(64), "d".repeat(64));
+
+    private HttpServer server;
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void startRegistry() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.start();
+    }
+
+    @AfterEach
+    void stopRegistry() {
+        server.stop(0);
+    }
+
+    private String registry() {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void anonymousRegistry() {
+        server.createContext("/v2/", exchange -> respond(exchange, 200, ""));
+    }
+
+    @Test
+    void readsDigestsOfAllArchitecturesOnce() {
+        anonymousRegistry();
+        server.createContext("/v2/library/ubuntu/manifests/20.04", exchange -> {
+            requests.add(exchange.getRequestURI().toString());
+            assertTrue(exchange.getRequestHeaders().getFirst("Accept").contains("manifest.list.v2+json"));
+            respond(exchange, 200, MANIFEST_LIST);
+        });
+        final RegistryManifestClient client = new RegistryManifestClient(reference -> Optional.empty());
+        final String reference = registry() + "/library/ubuntu:20.04";
+
+        assertEquals(
+                Map.of(Architecture.X86_64, AMD64, Architecture.AARCH64, ARM64),
+                client.getManifestDigests(reference)
+        );
+        assertEquals(AMD64, client.getManifestDigest(reference, Architecture.X86_64));
+        assertEquals(ARM64, client.getManifestDigest(reference, Architecture.AARCH64));
+        assertEquals(1, requests.size(), "Expected the manifest list to be fetched once but got " + requests);
+    }
+
+    @Test
+    void authenticatesWithBearerToken() {
+        server.createContext("/token", exchange -> {
+            requests.add(exchange.getRequestURI().toString());
+            assertEquals("Basic dXNlcjpwYXNz", exchange.getRequestHeaders().getFirst("Authorization"));
+            respond(exchange, 200, "{\"token\": \"secret-token\"}");
+        });
+        server.createContext("/v2/", exchange -> {
+            if (!"Bearer secret-token".equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                exchange.getResponseHeaders().add(
+                        "WWW-Authenticate",
+                        "Bearer realm=\"http://" + registry() + "/token\",service=\"test-registry\""
+                );
+                respond(exchange, 401, "");
+                return;
+            }
+            requests.add(exchange.getRequestURI().toString());
+            respond(exchange, 200, MANIFEST_LIST);
+        });
+        final RegistryManifestClient client = new RegistryManifestClient(
+                reference -> Optional.of(Credential.from("user", "pass"))
+        );
+
+        assertEquals(ARM64, client.getManifestDigest(registry() + "/team/image:latest", Architecture.AARCH64));
+        assertTrue(requests.get(0).startsWith("/token?"), "Expected a token request but got " + requests);
+        assertTrue(requests.get(0).contains("service=test-registry"), "Expected the service in " + requests);
+        assertEquals("/v2/team/image/manifests/latest", requests.get(requests.size() - 1));
+    }
+
+    @Test
+    void doesNotRetryMissingCredentials() {
+        anonymousRegistry();
+        server.createContext("/v2/team/private/manifests/latest", exchange -> {
+            requests.add(exchange.getRequestURI().toString());
+            respond(exchange, 401, "");
+        });
+        final RegistryManifestClient client = new RegistryManifestClient(reference -> Optional.empty());
+
+        assertThrows(GradleException.class, () -> client.getManifestDigests(registry() + "/team/private:latest"));
+        assertEquals(1, requests.size(), "Expected a single attempt but got " + requests);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import org.apache.commons.compress.archivers.ar.ArArchiveEntry;
+import org.apache.commons.compress.archivers.ar.ArArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RepositoryIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void writesDebianIndex() throws IOException {
+        final Path deb = tempDir.resolve("patch-2.7.6-amd64.deb");
+        try (ArArchiveOutputStream ar = new ArArchiveOutputStream(Files.newOutputStream(deb))) {
+            addToAr(ar, "debian-binary", "2.0\n".getBytes(StandardCharsets.UTF_8));
+            addToAr(ar, "control.tar.gz", gzip(tar("./control", "Package: patch\nVersion: 2.7.6\nArchitecture: amd64\n")));
+            addToAr(ar, "data.tar.gz", gzip(tar("./usr/bin/patch", "binary")));
+        }
+        Files.writeString(tempDir.resolve("Packages.gz"), "stale");
+
+        assertEquals(1, RepositoryIndex.write(OSDistribution.UBUNTU, tempDir));
+
+        final String index;
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(tempDir.resolve("Packages.gz")))) {
+            index = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertEquals(
+                "Package: patch\n" +
+                "Version: 2.7.6\n" +
+                "Architecture: amd64\n" +
+                "Filename: ./patch-2.7.6-amd64.deb\n" +
+                "Size: " + Files.size(deb) + "\n" +
+                "MD5sum: " + digest("MD5", Files.readAllBytes(deb)) + "\n" +
+                "SHA1: " + digest("SHA-1", Files.readAllBytes(deb)) + "\n" +
+                "SHA256: " + digest("SHA-256", Files.readAllBytes(deb)) + "\n" +
+                "\n",
+                index
+        );
+    }
+
+    @Test
+    void writesApkIndex() throws IOException {
+        final byte[] signature = gzip(tar(".SIGN.RSA.key.rsa.pub", "signature"));
+        final byte[] control = gzip(tar(".PKGINFO", """
+                # Generated by abuild
+                pkgname = curl
+                pkgver = 8.9.1-r0
+                arch = x86_64
+                size = 1024
+                pkgdesc = URL retrival utility and library
+                depend = libcurl-openssl4=8.9.1-r0
+                depend = so:libc.so.6
+                """));
+        final byte[] data = gzip(tar("usr/bin/curl", "binary"));
+        final Path apk = tempDir.resolve("curl-8.9.1-r0.apk");
+        try (OutputStream out = Files.newOutputStream(apk)) {
+            out.write(signature);
+            out.write(control);
+            out.write(data);
+        }
+
+        assertEquals(1, RepositoryIndex.write(OSDistribution.WOLFI, tempDir));
+
+        final String index;
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(
+                new GZIPInputStream(Files.newInputStream(tempDir.resolve("APKINDEX.tar.gz")))
+        )) {
+            assertEquals("APKINDEX", tar.getNextEntry().getName());
+            index = new String(tar.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertEquals(
+                "C:Q1" + Base64.getEncoder().encodeToString(HexFormat.of().parseHex(digest("SHA-1", control))) + "\n" +
+                "P:curl\n" +
+                "V:8.9.1-r0\n" +
+                "A:x86_64\n" +
+                "S:" + Files.size(apk) + "\n" +
+                "I:1024\n" +
+                "T:URL retrival utility and library\n" +
+                "D:libcurl-openssl4=8.9.1-r0 so:libc.so.6\n" +
+                "\n",
+                index
+        );
+    }
+
+    @Test
+    void unpacksLockedRepodata() throws IOException {
+        Files.write(
+                tempDir.resolve("__META__repodata-abc-meta.x86_64.tar"),
+                tar("repodata/repomd.xml", "<repomd/>")
+        );
+        Files.writeString(tempDir.resolve("patch-2.7.6-1.el7.x86_64.rpm"), "rpm");
+
+        assertEquals(1, RepositoryIndex.write(OSDistribution.CENTOS, tempDir));
+        assertEquals("<repomd/>", Files.readString(tempDir.resolve("repodata/repomd.xml")));
+    }
+
+    @Test
+    void rejectsRepodataOutsideOfTheRepository() throws IOException {
+        Files.write(tempDir.resolve("__META__repodata-abc-meta.x86_64.tar"), tar("../repomd.xml", "<repomd/>"));
+
+        assertThrows(org.gradle.api.GradleException.class, () -> RepositoryIndex.write(OSDistribution.CENTOS, tempDir));
+    }
+
+    private static void addToAr(ArArchiveOutputStream ar, String name, byte[] content) throws IOException {
+        ar.putArchiveEntry(new ArArchiveEntry(name, content.length));
+        ar.write(content);
+        ar.closeArchiveEntry();
+    }
+
+    private static byte[] tar(String name, String content) throws IOException {
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(out)) {
+            final TarArchiveEntry entry = new TarArchiveEntry(name);
+            entry.setSize(bytes.length);
+            tar.putArchiveEntry(entry);
+            tar.write(bytes);
+            tar.closeArchiveEntry();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    private static String digest(String algorithm, byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance(algorithm).digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
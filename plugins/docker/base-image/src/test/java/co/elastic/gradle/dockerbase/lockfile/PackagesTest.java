@@ -0,0 +1,96 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase.lockfile;
+
+import co.elastic.gradle.utils.Architecture;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PackagesTest {
+
+    @Test
+    public void shouldFindByName() {
+        final UnchangingPackage jq = new UnchangingPackage("jq", "1.5", "", "amd64");
+        final Packages packages = new Packages(List.of(new UnchangingPackage("curl", "7.68", "", "amd64"), jq));
+        assertEquals(Optional.of(jq), packages.findByName("jq"));
+        assertEquals(Optional.empty(), packages.findByName("patch"));
+    }
+
+    @Test
+    public void shouldRejectDuplicateNames() {
+        assertThrows(IllegalStateException.class, () -> new Packages(List.of(
+                new UnchangingPackage("jq", "1.5", "", "amd64"),
+                new UnchangingPackage("jq", "1.6", "", "amd64")
+        )));
+    }
+
+    @Test
+    public void shouldKeepMaxVersion() {
+        assertEquals(
+                List.of(
+                        new UnchangingPackage("kernel-core", "4.18.10", "1.el8", "x86_64"),
+                        new UnchangingPackage("jq", "1.5", "12.el8", "x86_64")
+                ),
+                Packages.getUniquePackagesWithMaxVersion(List.of(
+                        new UnchangingPackage("kernel-core", "4.18.2", "1.el8", "x86_64"),
+                        new UnchangingPackage("jq", "1.5", "12.el8", "x86_64"),
+                        new UnchangingPackage("kernel-core", "4.18.10", "1.el8", "x86_64"),
+                        new UnchangingPackage("kernel-core", "4.18.9", "1.el8", "x86_64")
+                ))
+        );
+    }
+
+    @Test
+    public void shouldDiffPackages() {
+        final UnchangingPackage curl = new UnchangingPackage("curl", "7.68", "1", "amd64");
+        final UnchangingPackage jq = new UnchangingPackage("jq", "1.5", "", "amd64");
+        final UnchangingPackage newJq = new UnchangingPackage("jq", "1.6", "", "amd64");
+        final UnchangingPackage patch = new UnchangingPackage("patch", "2.7", "", "amd64");
+
+        final BaseLockfile before = new BaseLockfile(
+                Map.of(Architecture.X86_64, new Packages(List.of(curl, jq))),
+                null
+        );
+        final BaseLockfile after = new BaseLockfile(
+                Map.of(
+                        Architecture.X86_64, new Packages(List.of(newJq, patch)),
+                        Architecture.AARCH64, new Packages(List.of(patch))
+                ),
+                null
+        );
+
+        final Map<Architecture, PackagesDiff> diff = after.diff(before);
+        final PackagesDiff x86 = diff.get(Architecture.X86_64);
+        assertEquals(List.of(patch), x86.added());
+        assertEquals(List.of(curl), x86.removed());
+        assertEquals(List.of(new PackagesDiff.Change(jq, newJq)), x86.changed());
+        assertEquals(
+                List.of("+ patch 2.7", "- curl 7.68-1", "~ jq 1.5 -> 1.6"),
+                x86.describe()
+        );
+
+        assertEquals(List.of(patch), diff.get(Architecture.AARCH64).added());
+        assertTrue(before.diff(before).get(Architecture.X86_64).isEmpty());
+    }
+}
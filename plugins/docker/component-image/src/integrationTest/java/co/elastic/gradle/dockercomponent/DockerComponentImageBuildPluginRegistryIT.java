@@ -23,6 +23,7 @@ import co.elastic.gradle.utils.Architecture;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
+import org.gradle.internal.impldep.com.fasterxml.jackson.databind.JsonNode;
 import org.gradle.internal.impldep.com.fasterxml.jackson.databind.ObjectMapper;
 import org.gradle.testkit.runner.BuildResult;
 import org.gradle.testkit.runner.TaskOutcome;
@@ -36,6 +37,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static co.elastic.gradle.AssertContains.assertContains;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -147,6 +150,90 @@ public class DockerComponentImageBuildPluginRegistryIT extends TestkitIntegratio
 
     }
 
+    @Test
+    public void testPushFromLayout() throws IOException {
+        helper.settings("""
+                     rootProject.name = "just-a-layout-test"
+                """);
+        Files.copy(
+                Objects.requireNonNull(getClass().getResourceAsStream("/docker-component-image.lock")),
+                helper.projectDir().resolve("docker-component-image.lock")
+        );
+        final String repository = String.format("docker.elastic.co/employees/%s/just-a-layout-test", ghHandle);
+
+        writeLayoutBuildScript("layout-1");
+        final BuildResult first = gradleRunner.withArguments("--warning-mode", "fail", "-s", "--info", "pushManifestList")
+                .build();
+
+        Arrays.stream(Architecture.values()).forEach(arch -> assertContains(
+                first.getOutput(),
+                String.format("Pushed image %s:layout-1-%s", repository, arch.dockerName())
+        ));
+        final Matcher pushedList = Pattern.compile(
+                "Pushed manifest list to " + Pattern.quote(repository + ":layout-1") + "@(\\S+)"
+        ).matcher(first.getOutput());
+        Assertions.assertTrue(pushedList.find(), "Expected the manifest list to be pushed");
+        final String listDigest = pushedList.group(1);
+
+        final RegistryManifestActions manifestActions = new RegistryManifestActions();
+        assertEquals(listDigest, manifestActions.getManifestDigest(repository + ":layout-1"));
+        final JsonNode manifestList = new ObjectMapper().readTree(
+                manifestActions.pullManifest(repository + ":layout-1", listDigest)
+        );
+        assertEquals(Architecture.values().length, manifestList.get("manifests").size());
+
+        // At most the image configuration changes with the version, the layers are already in the registry
+        writeLayoutBuildScript("layout-2");
+        final BuildResult second = gradleRunner.withArguments("--warning-mode", "fail", "-s", "--info", "pushManifestList")
+                .build();
+
+        Arrays.stream(Architecture.values()).forEach(arch -> {
+            final Matcher pushedBlobs = Pattern.compile(
+                    "Pushed (\\d+) of (\\d+) blobs to " + Pattern.quote(repository + ":layout-2-" + arch.dockerName())
+            ).matcher(second.getOutput());
+            Assertions.assertTrue(pushedBlobs.find(), "Expected the image for " + arch + " to be pushed from the layout");
+            Assertions.assertTrue(
+                    Integer.parseInt(pushedBlobs.group(1)) <= 1 && Integer.parseInt(pushedBlobs.group(2)) > 1,
+                    "Expected the layers of " + arch + " to be skipped but got: " + pushedBlobs.group()
+            );
+        });
+        assertContains(second.getOutput(), "Pushed manifest list to " + repository + ":layout-2");
+    }
+
+    private void writeLayoutBuildScript(String version) {
+        helper.buildScript(String.format("""
+                plugins {
+                   id("co.elastic.docker-component")
+                   id("co.elastic.vault")
+                }
+                project.version = "%s"
+                vault {
+                      address.set("https://vault-ci-prod.elastic.dev")
+                      auth {
+                        ghTokenFile()
+                        ghTokenEnv()
+                        tokenEnv()
+                        roleAndSecretEnv()
+                      }
+                }
+                cli {
+                    manifestTool {
+                       val credentials = vault.readAndCacheSecret("secret/ci/elastic-gradle-plugins/artifactory_creds").get()
+                       username.set(credentials["username"])
+                       password.set(credentials["plaintext"])
+                    }
+                }
+                dockerComponentImage {
+                    layoutOutput.set(true)
+                    buildAll {
+                        dockerTagPrefix.set("docker.elastic.co/employees/%s")
+                        from("ubuntu", "20.04")
+                    }
+                }
+                """, version, ghHandle
+        ));
+    }
+
     @Test
     public void testPushWithBasePluginImage() throws IOException {
         helper.settings("""
@@ -24,6 +24,7 @@ import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.docker.instruction.*;
 import kotlin.Pair;
 import org.gradle.api.Action;
+import org.gradle.api.GradleException;
 import org.gradle.api.Project;
 import org.gradle.api.file.CopySpec;
 import org.gradle.api.provider.ProviderFactory;
@@ -95,6 +96,25 @@ public class ComponentBuildDSL {
         copySpec(null, copySpecAction);
     }
 
+    /**
+     * Set how the copy specs that follow are split into layers.
+     */
+    @SuppressWarnings("unused")
+    public void layerPacking(LayerPacking.Policy policy) {
+        if (policy == LayerPacking.Policy.SIZE_BUCKETED) {
+            throw new GradleException("A maximum layer size is required for " + policy);
+        }
+        instructions.add(new LayerPacking(policy, 0));
+    }
+
+    @SuppressWarnings("unused")
+    public void layerPacking(LayerPacking.Policy policy, long maxLayerSizeMB) {
+        if (maxLayerSizeMB <= 0) {
+            throw new GradleException("The maximum layer size must be positive but was " + maxLayerSizeMB);
+        }
+        instructions.add(new LayerPacking(policy, maxLayerSizeMB));
+    }
+
     @SuppressWarnings("unused")
     public void entryPoint(List<String> entrypoint) {
         instructions.add(new Entrypoint(entrypoint));
@@ -19,15 +19,19 @@
 package co.elastic.gradle.dockercomponent;
 
 import co.elastic.gradle.dockercomponent.lockfile.ComponentLockfile;
+import co.elastic.gradle.utils.ArchiveSizeLimit;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.ZstdCompression;
 import co.elastic.gradle.utils.docker.DockerPluginConventions;
 import co.elastic.gradle.utils.docker.GradleCacheUtilities;
 import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
 import co.elastic.gradle.utils.docker.instruction.From;
 import co.elastic.gradle.utils.docker.instruction.FromLocalArchive;
+import org.apache.commons.io.FileUtils;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.ProjectLayout;
 import org.gradle.api.file.RegularFile;
 import org.gradle.api.file.RegularFileProperty;
@@ -44,10 +48,16 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -100,6 +110,20 @@ abstract public class ComponentBuildTask extends DefaultTask {
                 )
         );
 
+        getLayoutOutput().convention(false);
+        getImageLayout().convention(
+                getProjectLayout().getBuildDirectory().dir(getName() + "/" + "image.layout")
+                        .map(dir -> getLayoutOutput().get() ? dir : null)
+        );
+
+        getArchiveOutput().convention(true);
+
+        getCompressionLevel().convention(ZstdCompression.DEFAULT_LEVEL);
+        getCompressionWorkers().convention(getMaxParallelBuilds().map(ZstdCompression::defaultWorkers));
+        getCompressionLongDistanceMatching().convention(false);
+
+        getMaxParallelBuilds().convention(Architecture.values().length);
+
         rootCopySpec = getProject().getObjects().newInstance(DefaultCopySpec.class);
         rootCopySpec.addChildSpecListener(DockerPluginConventions.mapCopySpecToTaskInputs(this));
     }
@@ -113,12 +137,37 @@ abstract public class ComponentBuildTask extends DefaultTask {
     @OutputFiles
     abstract MapProperty<Architecture, RegularFile> getCreatedAtFile();
 
+    /**
+     * The images of all architectures in OCI layout, with the compressed layers ready to be pushed. Layers that are
+     * identical across architectures are only stored once. Only written if {@link #getLayoutOutput()} is enabled.
+     */
+    @OutputDirectory
+    @Optional
+    abstract DirectoryProperty getImageLayout();
+
+    /**
+     * Also write the images in OCI layout. Together with disabling {@link #getArchiveOutput()}, this keeps the outputs
+     * stored in the build cache smaller.
+     */
+    @Input
+    public abstract Property<Boolean> getLayoutOutput();
+
+    /**
+     * Write a self-contained archive for each architecture. Can only be disabled if {@link #getLayoutOutput()} is
+     * enabled.
+     */
+    @Input
+    public abstract Property<Boolean> getArchiveOutput();
+
     @Nested
     public abstract MapProperty<Architecture, List<ContainerImageBuildInstruction>> getInstructions();
 
+    @Internal
+    public abstract Property<ManifestDigestService> getManifestDigestService();
+
     @Input
     public List<String> getBaseImageIds() {
-        final JibActions jibActions = new JibActions();
+        final ManifestDigestService manifestDigests = getManifestDigestService().get();
 
         if (!isStaticFrom()) {
             // In case we have a FromLocalArchive instruction, we are building from dynamically pushed base images,
@@ -128,7 +177,7 @@ abstract public class ComponentBuildTask extends DefaultTask {
                     .flatMap(Collection::stream)
                     .filter((instruction) -> instruction instanceof From)
                     .map((it) -> (From) it)
-                    .map(from -> jibActions.getImageId(from.getReference().get()))
+                    .map(from -> manifestDigests.getDigest(from.getReference().get()))
                     .sorted() // Make sure the order doesn't invalidate the cache
                     .collect(Collectors.toList());
         } else {
@@ -169,6 +218,31 @@ abstract public class ComponentBuildTask extends DefaultTask {
     @Input
     public abstract Property<Long> getMaxOutputSizeMB();
 
+    /**
+     * The zstd compression level of the image archives. Only affects the size of the archive, not its content.
+     */
+    @Internal
+    public abstract Property<Integer> getCompressionLevel();
+
+    /**
+     * The number of threads used to compress the image archives.
+     */
+    @Internal
+    public abstract Property<Integer> getCompressionWorkers();
+
+    /**
+     * Use zstd long distance matching to compress the image archives, which helps with large images.
+     */
+    @Internal
+    public abstract Property<Boolean> getCompressionLongDistanceMatching();
+
+    /**
+     * The maximum number of architectures to build at the same time. Doesn't influence the resulting images, thus it's
+     * not an input.
+     */
+    @Internal
+    public abstract Property<Integer> getMaxParallelBuilds();
+
     @Inject
     protected abstract ProviderFactory getProviderFactory();
 
@@ -196,13 +270,11 @@ abstract public class ComponentBuildTask extends DefaultTask {
             lockFile = null;
         }
 
+        // Resolve everything we need from the task before handing off to other threads
+        final Map<Architecture, List<ContainerImageBuildInstruction>> instructionsByArchitecture = new TreeMap<>();
         for (Map.Entry<Architecture, List<ContainerImageBuildInstruction>> entry : getInstructions().get().entrySet()) {
-            final Architecture architecture = entry.getKey();
-            actions.buildArchive(
+            instructionsByArchitecture.put(
                     entry.getKey(),
-                    getImageArchive().get().get(architecture),
-                    getImageIdFile().get().get(architecture),
-                    getCreatedAtFile().get().get(architecture),
                     entry.getValue().stream()
                             .map(instruction -> {
                                 if (instruction instanceof From from) {
@@ -220,22 +292,110 @@ abstract public class ComponentBuildTask extends DefaultTask {
                             .toList()
             );
         }
+        final Map<Architecture, RegularFile> imageArchives = getImageArchive().get();
+        final Map<Architecture, RegularFile> imageIdFiles = getImageIdFile().get();
+        final Map<Architecture, RegularFile> createdAtFiles = getCreatedAtFile().get();
+        final boolean archiveOutput = getArchiveOutput().get();
+        final ZstdCompression compression = new ZstdCompression(
+                getCompressionLevel().get(),
+                getCompressionWorkers().get(),
+                getCompressionLongDistanceMatching().get()
+        );
+        // Shared by all architectures since the limit applies to the output of the task as a whole
+        final ArchiveSizeLimit sizeLimit = new ArchiveSizeLimit(getPath(), getMaxOutputSizeMB().get());
+        final Path contextRoot = getProjectLayout().getBuildDirectory().dir(getName() + "/" + LAYERS_DIR).get()
+                .getAsFile().toPath();
+        final Path temporaryDir = getTemporaryDir().toPath();
+        if (!archiveOutput && !getImageLayout().isPresent()) {
+            throw new GradleException(
+                    "At least one of archiveOutput and layoutOutput needs to be enabled to build the component image"
+            );
+        }
+        if (!archiveOutput) {
+            for (RegularFile archive : imageArchives.values()) {
+                Files.deleteIfExists(archive.getAsFile().toPath());
+            }
+        }
+        final OciLayout imageLayout = getImageLayout().isPresent() ?
+                OciLayout.create(RegularFileUtils.toPath(getImageLayout())) :
+                null;
+
+        actions.stampLayers(instructionsByArchitecture.values(), contextRoot);
 
+        final int parallelism = Math.max(1, Math.min(getMaxParallelBuilds().get(), instructionsByArchitecture.size()));
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            final Map<Architecture, Future<OciLayout.ManifestDescriptor>> builds = new TreeMap<>();
+            instructionsByArchitecture.forEach((architecture, instructions) ->
+                    builds.put(architecture, executor.submit(() -> {
+                        getLogger().info("Building component image for {}", architecture);
+                        final OciLayout.ManifestDescriptor manifest = actions.buildArchive(
+                                architecture,
+                                archiveOutput ? imageArchives.get(architecture) : null,
+                                compression,
+                                sizeLimit,
+                                imageIdFiles.get(architecture),
+                                createdAtFiles.get(architecture),
+                                imageLayout,
+                                instructions,
+                                contextRoot,
+                                temporaryDir
+                        );
+                        getLogger().info("Done building component image for {}", architecture);
+                        return manifest;
+                    }))
+            );
+
+            final List<OciLayout.ManifestDescriptor> manifests = new ArrayList<>();
+            final Map<Architecture, Throwable> failures = new TreeMap<>();
+            for (Map.Entry<Architecture, Future<OciLayout.ManifestDescriptor>> build : builds.entrySet()) {
+                try {
+                    manifests.add(build.getValue().get());
+                } catch (ExecutionException e) {
+                    failures.put(build.getKey(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GradleException("Interrupted while building component images", e);
+                }
+            }
+            if (!failures.isEmpty()) {
+                failures.forEach((architecture, error) ->
+                        getLogger().error("Building the component image for {} failed", architecture, error)
+                );
+                final GradleException exception = new GradleException(
+                        "Failed to build component image for: " + failures.keySet().stream()
+                                .map(Architecture::dockerName)
+                                .collect(Collectors.joining(", "))
+                );
+                failures.values().forEach(exception::addSuppressed);
+                throw exception;
+            }
+            if (imageLayout != null) {
+                imageLayout.writeIndex(manifests);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The limit applies to the archives, same as the sizeLimit used while writing them, or to the layout when it's
+        // the only output
         if (getMaxOutputSizeMB().get() > 0) {
             GradleCacheUtilities.assertOutputSize(
                     getPath(),
-                    getImageArchive().get().values().stream()
-                            .map(RegularFile::getAsFile)
-                            .map(File::toPath)
-                            .filter(Files::exists) // Not all of them will exist locally
-                            .map(path -> {
-                                try {
-                                    return Files.size(path);
-                                } catch (IOException e) {
-                                    throw new UncheckedIOException(e);
-                                }
-                            })
-                            .reduce(0L, Long::sum),
+                    archiveOutput ?
+                            getImageArchive().get().values().stream()
+                                    .map(RegularFile::getAsFile)
+                                    .map(File::toPath)
+                                    .filter(Files::exists) // Not all of them will exist locally
+                                    .map(path -> {
+                                        try {
+                                            return Files.size(path);
+                                        } catch (IOException e) {
+                                            throw new UncheckedIOException(e);
+                                        }
+                                    })
+                                    .reduce(0L, Long::sum) :
+                            FileUtils.sizeOfDirectory(imageLayout.getRoot().toFile()),
                     getMaxOutputSizeMB().get()
             );
         }
@@ -19,6 +19,7 @@
 package co.elastic.gradle.dockercomponent;
 
 import co.elastic.gradle.utils.Architecture;
+import co.elastic.gradle.utils.ZstdCompression;
 import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
 import org.gradle.api.Action;
 import org.gradle.api.file.ProjectLayout;
@@ -68,10 +69,35 @@ public abstract  class ComponentImageBuildExtension implements ExtensionAware {
 
 
         getMaxOutputSizeMB().convention(-1L);
+
+        getMaxParallelBuilds().convention(Architecture.values().length);
+
+        getMaxConcurrentPushesPerRegistry().convention(Architecture.values().length);
+
+        getArchiveOutput().convention(true);
+        getLayoutOutput().convention(false);
+
+        getCompressionLevel().convention(ZstdCompression.DEFAULT_LEVEL);
+        getCompressionWorkers().convention(getMaxParallelBuilds().map(ZstdCompression::defaultWorkers));
+        getCompressionLongDistanceMatching().convention(false);
     }
 
     public abstract Property<Long> getMaxOutputSizeMB();
 
+    public abstract Property<Integer> getMaxParallelBuilds();
+
+    public abstract Property<Integer> getMaxConcurrentPushesPerRegistry();
+
+    public abstract Property<Boolean> getArchiveOutput();
+
+    public abstract Property<Boolean> getLayoutOutput();
+
+    public abstract Property<Integer> getCompressionLevel();
+
+    public abstract Property<Integer> getCompressionWorkers();
+
+    public abstract Property<Boolean> getCompressionLongDistanceMatching();
+
     @Inject
     protected abstract ProjectLayout getProjectLayout();
 
@@ -22,12 +22,18 @@ package co.elastic.gradle.dockercomponent;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.GradleUtils;
 import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.RetryUtils;
+import com.google.cloud.tools.jib.api.ImageReference;
+import com.google.cloud.tools.jib.api.InvalidImageReferenceException;
 import com.google.cloud.tools.jib.api.JibContainer;
 import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
 import org.gradle.api.Project;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.ProjectLayout;
 import org.gradle.api.file.RegularFile;
 import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.*;
 
@@ -35,15 +41,29 @@ import javax.inject.Inject;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 abstract public class ComponentPushTask extends DefaultTask {
 
+    /**
+     * Total number of retries shared by all the pushes of the task, so that a registry outage doesn't result in every
+     * architecture retrying on its own.
+     */
+    private static final int PUSH_RETRY_BUDGET = 10;
+
     public ComponentPushTask() {
         getDigestFiles().convention(
                getImageArchive().map(map -> map.entrySet().stream()
@@ -53,6 +73,24 @@ abstract public class ComponentPushTask extends DefaultTask {
                            )))
         );
 
+        getTimingFiles().convention(
+               getImageArchive().map(map -> map.entrySet().stream()
+                           .collect(Collectors.toMap(
+                                   Map.Entry::getKey,
+                                   entry -> getProjectLayout().getBuildDirectory().file(entry.getValue().getAsFile().getName() + ".pushTime")
+                           )))
+        );
+
+        getManifestFiles().convention(
+               getImageArchive().map(map -> map.entrySet().stream()
+                           .collect(Collectors.toMap(
+                                   Map.Entry::getKey,
+                                   entry -> getProjectLayout().getBuildDirectory().file(entry.getValue().getAsFile().getName() + ".manifest.json")
+                           )))
+        );
+
+        getMaxConcurrentPushesPerRegistry().convention(Architecture.values().length);
+
         getTags().convention(
                 getImageArchive().map(map -> map.keySet().stream()
                         .collect(Collectors.toMap(
@@ -103,40 +141,151 @@ abstract public class ComponentPushTask extends DefaultTask {
     @Internal
     abstract public MapProperty<Architecture, Provider<RegularFile>> getDigestFiles();
 
+    @OutputFiles
+    public Collection<Provider<RegularFile>> getAllTimingFiles() {
+        return getTimingFiles().get().values();
+    }
+
+    /**
+     * Files holding the time it took to push each architecture, as an ISO-8601 duration.
+     */
+    @Internal
+    abstract public MapProperty<Architecture, Provider<RegularFile>> getTimingFiles();
+
+    @OutputFiles
+    public Collection<Provider<RegularFile>> getAllManifestFiles() {
+        return getManifestFiles().get().values();
+    }
+
+    /**
+     * Files holding the manifest of each pushed architecture, so the manifest list can be created without fetching
+     * them again.
+     */
+    @Internal
+    abstract public MapProperty<Architecture, Provider<RegularFile>> getManifestFiles();
+
+    /**
+     * The maximum number of images pushed to the same registry at the same time.
+     */
+    @Internal
+    abstract public Property<Integer> getMaxConcurrentPushesPerRegistry();
+
     @Internal
     abstract public MapProperty<Architecture, RegularFile> getImageArchive();
 
     @Internal
     abstract public MapProperty<Architecture, RegularFile> getCreatedAtFiles();
 
+    /**
+     * Images in OCI layout to push instead of the archives, so only the blobs missing from the registry are read.
+     */
+    @InputDirectory
+    @org.gradle.api.tasks.Optional
+    abstract public DirectoryProperty getImageLayout();
+
     @Inject
     abstract protected ProjectLayout getProjectLayout();
 
     @TaskAction
     public void pushImage() {
         final JibActions jibActions = new JibActions();
-        getImageArchive().get().forEach((architecture, imageArchive) -> {
-            final String tag = getTags().get().get(architecture);
-            final RegularFile createdAtFile = getCreatedAtFiles().get().get(architecture);
-            final Instant createdAt = Instant.parse(RegularFileUtils.readString(createdAtFile).trim());
-            final JibContainer container = jibActions.pushImage(
-                imageArchive.getAsFile().toPath(), 
-                tag,
-                createdAt
-            );
-            final String repoDigest = container.getDigest().toString();
-            try {
-                Files.writeString(
-                        RegularFileUtils.toPath(getDigestFiles().get().get(architecture)),
-                        repoDigest
+        final RegistryManifestActions manifestActions = new RegistryManifestActions();
+        final RetryUtils.RetryBudget retryBudget = new RetryUtils.RetryBudget(PUSH_RETRY_BUDGET);
+        final Map<String, Semaphore> registryPermits = new HashMap<>();
+
+        // Resolve everything we need from the task before handing off to other threads
+        final Map<Architecture, RegularFile> imageArchives = new TreeMap<>(getImageArchive().get());
+        final Map<Architecture, String> tags = getTags().get();
+        final Map<Architecture, RegularFile> createdAtFiles = getCreatedAtFiles().get();
+        final OciLayout imageLayout = getImageLayout().isPresent() ?
+                new OciLayout(RegularFileUtils.toPath(getImageLayout())) :
+                null;
+        final Map<Architecture, Provider<RegularFile>> digestFiles = getDigestFiles().get();
+        final Map<Architecture, Provider<RegularFile>> timingFiles = getTimingFiles().get();
+        final Map<Architecture, Provider<RegularFile>> manifestFiles = getManifestFiles().get();
+        final int maxConcurrentPushes = Math.max(1, getMaxConcurrentPushesPerRegistry().get());
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, imageArchives.size()));
+        try {
+            final Map<Architecture, Future<?>> pushes = new TreeMap<>();
+            imageArchives.forEach((architecture, imageArchive) -> {
+                final String tag = tags.get(architecture);
+                final Semaphore permits = registryPermits.computeIfAbsent(
+                        getRegistry(tag),
+                        registry -> new Semaphore(maxConcurrentPushes)
+                );
+                final Instant createdAt = Instant.parse(RegularFileUtils.readString(createdAtFiles.get(architecture)).trim());
+                pushes.put(architecture, executor.submit(() -> {
+                    permits.acquireUninterruptibly();
+                    final Instant start = Instant.now();
+                    final String repoDigest;
+                    final byte[] manifest;
+                    try {
+                        if (imageLayout != null) {
+                            repoDigest = manifestActions.pushLayout(imageLayout, architecture, tag, retryBudget);
+                            manifest = imageLayout.getManifestBytes(architecture);
+                        } else {
+                            final JibContainer container = jibActions.pushImage(
+                                    imageArchive.getAsFile().toPath(),
+                                    tag,
+                                    createdAt,
+                                    retryBudget
+                            );
+                            repoDigest = container.getDigest().toString();
+                            manifest = manifestActions.pullManifest(tag, repoDigest);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        permits.release();
+                    }
+                    final Duration pushTime = Duration.between(start, Instant.now());
+                    try {
+                        Files.writeString(RegularFileUtils.toPath(digestFiles.get(architecture)), repoDigest);
+                        Files.write(RegularFileUtils.toPath(manifestFiles.get(architecture)), manifest);
+                        Files.writeString(RegularFileUtils.toPath(timingFiles.get(architecture)), pushTime.toString());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    getLogger().lifecycle("Pushed image {}@{} in {}s", tag, repoDigest, pushTime.toMillis() / 1000.0);
+                }));
+            });
+
+            final Map<Architecture, Throwable> failures = new TreeMap<>();
+            for (Map.Entry<Architecture, Future<?>> push : pushes.entrySet()) {
+                try {
+                    push.getValue().get();
+                } catch (ExecutionException e) {
+                    failures.put(push.getKey(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GradleException("Interrupted while pushing component images", e);
+                }
+            }
+            if (!failures.isEmpty()) {
+                failures.forEach((architecture, error) ->
+                        getLogger().error("Pushing the component image for {} failed", architecture, error)
                 );
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+                final GradleException exception = new GradleException(
+                        "Failed to push component image for: " + failures.keySet().stream()
+                                .map(Architecture::dockerName)
+                                .collect(Collectors.joining(", "))
+                );
+                failures.values().forEach(exception::addSuppressed);
+                throw exception;
             }
-            getLogger().lifecycle("Pushed image {}@{}", tag, repoDigest);
-        });
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
+    private static String getRegistry(String tag) {
+        try {
+            return ImageReference.parse(tag).getRegistry();
+        } catch (InvalidImageReferenceException e) {
+            throw new GradleException("Invalid image reference: " + tag, e);
+        }
+    }
 
 }
 
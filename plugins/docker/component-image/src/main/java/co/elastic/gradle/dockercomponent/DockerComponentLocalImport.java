@@ -22,6 +22,7 @@ import co.elastic.gradle.dockercomponent.lockfile.ComponentLockfile;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RegularFileUtils;
 import co.elastic.gradle.utils.docker.ContainerImageProviderTask;
+import co.elastic.gradle.utils.docker.DockerDaemonService;
 import co.elastic.gradle.utils.docker.DockerPluginConventions;
 import co.elastic.gradle.utils.docker.DockerUtils;
 import co.elastic.gradle.utils.docker.instruction.ChangingLabel;
@@ -106,6 +107,9 @@ abstract public class DockerComponentLocalImport extends DefaultTask implements
     @Inject
     protected abstract ProviderFactory getProviderFactory();
 
+    @Internal
+    public abstract Property<DockerDaemonService> getDockerDaemonService();
+
     @TaskAction
     public void localImport() throws IOException {
         final Path contextRoot = getProject().getBuildDir().toPath()
@@ -118,7 +122,7 @@ abstract public class DockerComponentLocalImport extends DefaultTask implements
         );
 
         final JibActions actions = new JibActions();
-        actions.buildToDaemon(
+        getDockerDaemonService().get().run(DockerDaemonService.Operation.LOAD, () -> actions.buildToDaemon(
                 getTag().get(),
                 getImageIdFile().get(),
                 getInstructions().get().get(Architecture.current())
@@ -149,7 +153,7 @@ abstract public class DockerComponentLocalImport extends DefaultTask implements
                         })
                         .collect(Collectors.toList()),
                 contextRoot
-        );
+        ));
         Files.writeString(getMarker().toPath(), getTag().get());
         getLogger().lifecycle("Image with Id {} tagged as {}",
                 RegularFileUtils.readString(getImageIdFile().get()).trim(),
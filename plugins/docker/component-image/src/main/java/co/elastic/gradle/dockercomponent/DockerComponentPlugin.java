@@ -26,9 +26,11 @@ import co.elastic.gradle.snyk.SnykCLIExecTask;
 import co.elastic.gradle.snyk.SnykPlugin;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.GradleUtils;
+import co.elastic.gradle.utils.docker.DockerDaemonService;
 import co.elastic.gradle.utils.docker.InstructionCopySpecMapper;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.TaskProvider;
 
 import java.util.Arrays;
@@ -47,6 +49,10 @@ public class DockerComponentPlugin implements Plugin<Project> {
         final ComponentImageBuildExtension extension = target.getExtensions()
                 .create("dockerComponentImage", ComponentImageBuildExtension.class);
 
+        final Provider<ManifestDigestService> manifestDigestService = target.getGradle().getSharedServices()
+                .registerIfAbsent(ManifestDigestService.NAME, ManifestDigestService.class, spec -> {});
+        final Provider<DockerDaemonService> dockerDaemonService = DockerDaemonService.registerIfAbsent(target);
+
         final TaskProvider<ComponentPullTask> dockerComponentPull = target.getTasks().register(
                 "dockerComponentPull",
                 ComponentPullTask.class,
@@ -69,9 +75,17 @@ public class DockerComponentPlugin implements Plugin<Project> {
                 "dockerComponentImageBuild",
                 ComponentBuildTask.class,
                 task -> {
+                    task.getManifestDigestService().set(manifestDigestService);
+                    task.usesService(manifestDigestService);
                     task.getInstructions().set(extension.getInstructions());
                     task.getLockFileLocation().set(extension.getLockFileLocation());
                     task.getMaxOutputSizeMB().set(extension.getMaxOutputSizeMB());
+                    task.getMaxParallelBuilds().set(extension.getMaxParallelBuilds());
+                    task.getArchiveOutput().set(extension.getArchiveOutput());
+                    task.getLayoutOutput().set(extension.getLayoutOutput());
+                    task.getCompressionLevel().set(extension.getCompressionLevel());
+                    task.getCompressionWorkers().set(extension.getCompressionWorkers());
+                    task.getCompressionLongDistanceMatching().set(extension.getCompressionLongDistanceMatching());
                 }
         );
 
@@ -83,6 +97,8 @@ public class DockerComponentPlugin implements Plugin<Project> {
                             extension.getDockerTagLocalPrefix()
                                     .map(prefix -> prefix + "/" + target.getName() + ":latest")
                     );
+                    task.getDockerDaemonService().set(dockerDaemonService);
+                    task.usesService(dockerDaemonService);
                     task.getInstructions().set(extension.getInstructions());
                     task.getLockFileLocation().set(extension.getLockFileLocation());
                 }
@@ -105,9 +121,13 @@ public class DockerComponentPlugin implements Plugin<Project> {
                     task.getImageArchive().set(
                             dockerComponentImageBuild.flatMap(ComponentBuildTask::getImageArchive)
                     );
+                    task.getImageLayout().set(
+                            dockerComponentImageBuild.flatMap(ComponentBuildTask::getImageLayout)
+                    );
                     task.getCreatedAtFiles().set(
                             dockerComponentImageBuild.flatMap(ComponentBuildTask::getCreatedAtFile)
                     );
+                    task.getMaxConcurrentPushesPerRegistry().set(extension.getMaxConcurrentPushesPerRegistry());
                     task.getTags().set(
                             extension.getDockerTagPrefix().flatMap(prefix ->
                                     extension.getInstructions().map(instructions ->
@@ -130,6 +150,9 @@ public class DockerComponentPlugin implements Plugin<Project> {
                     task.getArchitectureTags().set(
                             dockerComponentImagePush.flatMap(ComponentPushTask::getTags)
                     );
+                    task.getArchitectureManifests().set(
+                            dockerComponentImagePush.flatMap(ComponentPushTask::getManifestFiles)
+                    );
                     task.getTag().set(
                             extension.getDockerTagPrefix()
                                     .map(prefix -> prefix + "/" + target.getName() + ":" + target.getVersion())
@@ -19,8 +19,10 @@
 
 package co.elastic.gradle.dockercomponent;
 
+import co.elastic.gradle.utils.ArchiveSizeLimit;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RetryUtils;
+import co.elastic.gradle.utils.ZstdCompression;
 import co.elastic.gradle.utils.docker.UnchangingContainerReference;
 import co.elastic.gradle.utils.docker.instruction.*;
 import com.google.cloud.tools.jib.api.CacheDirectoryCreationException;
@@ -37,9 +39,6 @@ import com.google.cloud.tools.jib.api.RegistryImage;
 import com.google.cloud.tools.jib.api.TarImage;
 import com.google.cloud.tools.jib.api.buildplan.*;
 import com.google.cloud.tools.jib.frontend.CredentialRetrieverFactory;
-import com.google.common.jimfs.Configuration;
-import com.google.common.jimfs.Jimfs;
-import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
 import org.apache.commons.io.IOUtils;
 import org.gradle.api.GradleException;
 import org.gradle.api.file.RegularFile;
@@ -49,7 +48,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -61,24 +59,18 @@ import java.util.stream.Stream;
 
 public class JibActions {
 
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
     private Logger logger = LoggerFactory.getLogger(JibActions.class);
 
-    public String getImageId(String reference) {
-        return RetryUtils.retry(() -> {
-                    try {
-                        return Jib.from(getAuthenticatedRegistryImage(reference))
-                                .containerize(getContainerizer(
-                                        TarImage.at(new File("/dev/null").toPath()).named("dev/null")
-                                ))
-                                .getImageId()
-                                .toString();
-                    } catch (InterruptedException | InvalidImageReferenceException | RegistryException | IOException | CacheDirectoryCreationException | ExecutionException e) {
-                        throw new GradleException("Failed to get Image IDs of remote images", e);
-                    }
-                }).maxAttempt(6)
-                .exponentialBackoff(1000, 30000)
-                .onRetryError(error -> logger.warn("Error while pushing image with Jib. Retrying", error))
-                .execute();
+    private final Path jibCacheDir;
+
+    public JibActions() {
+        this(Paths.get(System.getProperty("user.home")).resolve(".gradle-jib"));
+    }
+
+    JibActions(Path jibCacheDir) {
+        this.jibCacheDir = jibCacheDir;
     }
 
     private RegistryImage getAuthenticatedRegistryImage(String reference) throws InvalidImageReferenceException {
@@ -96,7 +88,7 @@ public class JibActions {
         ).dockerConfig();
     }
 
-    public JibContainer pushImage(Path imageArchive, String tag, Instant createdAt) {
+    public JibContainer pushImage(Path imageArchive, String tag, Instant createdAt, RetryUtils.RetryBudget retryBudget) {
         return RetryUtils.retry(() -> {
                     try {
                         return Jib.from(TarImage.at(imageArchive))
@@ -110,6 +102,7 @@ public class JibActions {
                         throw new GradleException("Error pushing image archive in registry (" + tag + ").", e);
                     }
                 }).maxAttempt(6)
+                .budget(retryBudget)
                 .exponentialBackoff(1000, 30000)
                 .onRetryError(error -> logger.warn("Error while pushing image with Jib. Retrying", error))
                 .execute();
@@ -149,6 +142,7 @@ public class JibActions {
 
         jibBuilder.setPlatforms(Set.of(new Platform(Architecture.current().dockerName(), "linux")));
 
+        stampLayers(List.of(instructions), contextRoot);
         processInstructions(
                 jibBuilder,
                 contextRoot,
@@ -219,12 +213,25 @@ public class JibActions {
         );
     }
 
-    public void buildArchive(
+    /**
+     * Build the image for an architecture and add it to the layout.
+     *
+     * @param imageArchive where to write a self-contained archive of the image, or null if only the layout is needed
+     * @param sizeLimit    fails writing the archive as soon as it gets too large
+     * @param imageLayout  the layout to add the image to, or null if only the archive is needed
+     * @return the manifest of the image to be added to the index of the layout, or null without a layout
+     */
+    public OciLayout.ManifestDescriptor buildArchive(
             Architecture architecture,
             RegularFile imageArchive,
+            ZstdCompression compression,
+            ArchiveSizeLimit sizeLimit,
             RegularFile imageId,
             RegularFile createdAtFile,
-            List<ContainerImageBuildInstruction> instructions
+            OciLayout imageLayout,
+            List<ContainerImageBuildInstruction> instructions,
+            Path contextRoot,
+            Path temporaryDir
     ) {
         try {
             final Optional<From> fromImageRef = instructions.stream()
@@ -250,23 +257,33 @@ public class JibActions {
             jibBuilder.setPlatforms(Set.of(new Platform(architecture.dockerName(), "linux")));
             processInstructions(
                     jibBuilder,
-                    imageArchive.getAsFile().toPath().getParent().resolve("context"),
+                    contextRoot,
                     instructions
             );
 
             Instant createdAt = Instant.now();
             jibBuilder.setCreationTime(createdAt);
 
+            // Jib can only write the image tarball to a path, and it needs to be compressed afterwards. Writing it to
+            // disk and streaming it through the compressor keeps memory usage bounded regardless of the image size.
             final JibContainer container;
-            try (FileSystem memFS = Jimfs.newFileSystem(Configuration.unix())) {
-                final Path imagePath = memFS.getPath("/foo");
+            final OciLayout.ManifestDescriptor manifest;
+            final Path imageTarball = temporaryDir.resolve("image-" + architecture + ".tar");
+            try {
                 container = jibBuilder.containerize(
-                        getContainerizer(TarImage.at(imagePath).named("detached"))
+                        getContainerizer(TarImage.at(imageTarball).named("detached"))
                 );
-                try (InputStream image = Files.newInputStream(imagePath); ZstdCompressorOutputStream compressedOut = new ZstdCompressorOutputStream(
-                        new BufferedOutputStream(Files.newOutputStream(imageArchive.getAsFile().toPath())))) {
-                    IOUtils.copy(image, compressedOut);
+                if (imageArchive != null) {
+                    try (InputStream image = new BufferedInputStream(Files.newInputStream(imageTarball));
+                         OutputStream compressedOut = sizeLimit.trackEntries(compression.compress(sizeLimit.limit(
+                                 new BufferedOutputStream(Files.newOutputStream(imageArchive.getAsFile().toPath())))))) {
+                        IOUtils.copy(image, compressedOut, COPY_BUFFER_SIZE);
+                    }
+                    sizeLimit.assertNotExceeded();
                 }
+                manifest = imageLayout != null ? imageLayout.addDockerTarball(imageTarball, architecture) : null;
+            } finally {
+                Files.deleteIfExists(imageTarball);
             }
             Files.writeString(
                     imageId.getAsFile().toPath(),
@@ -277,20 +294,63 @@ public class JibActions {
                     createdAtFile.getAsFile().toPath(),
                     createdAt.toString()
             );
+            return manifest;
         } catch (InterruptedException | RegistryException | IOException | CacheDirectoryCreationException | ExecutionException | InvalidImageReferenceException e) {
             throw new GradleException("Failed to build component image", e);
         }
     }
 
-    private void processInstructions(JibContainerBuilder jibBuilder, Path contextRoot, List<ContainerImageBuildInstruction> instructions) {
+    /**
+     * Stamps the top level entries of every layer with a modification time derived from their fingerprint, see
+     * {@link LayerFingerprint}. The layer directories are shared by all architectures, so this is done once, before any
+     * of them is built.
+     */
+    public void stampLayers(Collection<List<ContainerImageBuildInstruction>> instructions, Path contextRoot) {
+        final Set<Path> stamped = new HashSet<>();
         instructions.stream()
-                .filter(t -> !(t instanceof FromLocalArchive))
-                .filter(t -> !(t instanceof From))
-                .forEach(instruction -> applyJibInstruction(
-                        jibBuilder,
-                        instruction,
-                        contextRoot
-                ));
+                .flatMap(List::stream)
+                .filter(instruction -> instruction instanceof Copy)
+                .map(instruction -> (Copy) instruction)
+                .forEach(copy -> {
+                    final Path contextFolder = contextRoot.resolve(copy.getLayer());
+                    // Missing layers are reported when the image is built
+                    if (!Files.isDirectory(contextFolder) || !stamped.add(contextFolder)) {
+                        return;
+                    }
+                    try (Stream<Path> entries = Files.list(contextFolder)) {
+                        entries.sorted().forEach(entry -> {
+                            final LayerFingerprint fingerprint = LayerFingerprint.of(
+                                    entry,
+                                    copy.getOwner(),
+                                    path -> getJibFilePermission(path, null).toOctalString()
+                            );
+                            fingerprint.stamp(entry);
+                            logger.debug("Layer entry {} has fingerprint {}", entry, fingerprint);
+                        });
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Error stamping " + copy.getLayer(), e);
+                    }
+                });
+    }
+
+    private void processInstructions(JibContainerBuilder jibBuilder, Path contextRoot, List<ContainerImageBuildInstruction> instructions) {
+        // The packing policy applies to the copy specs that follow it
+        LayerPacking layerPacking = LayerPacking.DEFAULT;
+        for (ContainerImageBuildInstruction instruction : instructions) {
+            if (instruction instanceof FromLocalArchive || instruction instanceof From) {
+                continue;
+            }
+            if (instruction instanceof LayerPacking packing) {
+                layerPacking = packing;
+                continue;
+            }
+            applyJibInstruction(
+                    jibBuilder,
+                    instruction,
+                    contextRoot,
+                    layerPacking
+            );
+        }
     }
 
     private Containerizer getContainerizer(TarImage at) {
@@ -301,18 +361,20 @@ public class JibActions {
 
     @NotNull
     private Path getJibBaseLayersCacheDir() {
-        return Paths.get(System.getProperty("user.home")).resolve(".gradle-jib/cache");
+        return jibCacheDir.resolve("cache");
     }
 
     @NotNull
     private Path getJibApplicationCacheDir() {
-        return Paths.get(System.getProperty("java.io.tmpdir")).resolve(".jib");
+        // Application layers are looked up by fingerprint (see LayerFingerprint), so keep them across builds
+        return jibCacheDir.resolve("application-cache");
     }
 
     private void applyJibInstruction(
             JibContainerBuilder jibBuilder,
             ContainerImageBuildInstruction instruction,
-            Path contextRoot
+            Path contextRoot,
+            LayerPacking layerPacking
     ) {
         if (instruction instanceof Copy) {
             Copy copyInstruction = (Copy) instruction;
@@ -327,28 +389,32 @@ public class JibActions {
             if (!Files.isDirectory(contextFolder)) {
                 throw new RuntimeException("Expected " + contextFolder + " to be a directory.");
             }
+            final List<Path> entries;
             try (Stream<Path> elements = Files.list(contextFolder)) {
-                elements.forEach(file -> {
-                            try {
-                                jibBuilder.addFileEntriesLayer(
-                                        FileEntriesLayer.builder()
-                                                .addEntryRecursive(
-                                                        file,
-                                                        AbsoluteUnixPath.get("/" + file.getFileName()),
-                                                        JibActions::getJibFilePermission,
-                                                        FileEntriesLayer.DEFAULT_MODIFICATION_TIME_PROVIDER,
-                                                        Optional.ofNullable(copyInstruction.getOwner()).isPresent() ?
-                                                                (sourcePath, destinationPath) -> copyInstruction.getOwner() :
-                                                                FileEntriesLayer.DEFAULT_OWNERSHIP_PROVIDER
-                                                ).build());
-                            } catch (IOException e) {
-                                throw new UncheckedIOException(e);
-                            }
-                        }
-                );
+                // Sorted so that the layers are always created in the same order
+                entries = elements.sorted().toList();
             } catch (IOException e) {
                 throw new UncheckedIOException("Error configuring " + copyInstruction.getLayer() + " for Jib docker config", e);
             }
+            for (List<Path> layerEntries : layerPacking.pack(entries)) {
+                final FileEntriesLayer.Builder layer = FileEntriesLayer.builder();
+                for (Path file : layerEntries) {
+                    try {
+                        layer.addEntryRecursive(
+                                file,
+                                AbsoluteUnixPath.get("/" + file.getFileName()),
+                                JibActions::getJibFilePermission,
+                                FileEntriesLayer.DEFAULT_MODIFICATION_TIME_PROVIDER,
+                                Optional.ofNullable(copyInstruction.getOwner()).isPresent() ?
+                                        (sourcePath, destinationPath) -> copyInstruction.getOwner() :
+                                        FileEntriesLayer.DEFAULT_OWNERSHIP_PROVIDER
+                        );
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                jibBuilder.addFileEntriesLayer(layer.build());
+            }
         } else if (instruction instanceof Entrypoint entrypoint) {
             jibBuilder.setEntrypoint(entrypoint.getValue());
         } else if (instruction instanceof Cmd cmd) {
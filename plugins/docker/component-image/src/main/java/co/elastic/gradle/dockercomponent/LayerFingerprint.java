@@ -0,0 +1,133 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockercomponent;
+
+import org.gradle.api.GradleException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Fingerprint of everything that goes into a layer: paths, contents, permissions and owner.
+ * <p>
+ * Jib looks up cached application layers by the source paths, permissions, ownership and the last modified time of the
+ * source files. The layer context is synced on every build, so the last modified times change even if the content
+ * doesn't, and Jib ends up re-creating and compressing every layer. Stamping the files with a time derived from the
+ * fingerprint makes the lookup depend on the content instead, so only the layers that actually changed are rebuilt.
+ */
+class LayerFingerprint {
+
+    private final byte[] hash;
+
+    private LayerFingerprint(byte[] hash) {
+        this.hash = hash;
+    }
+
+    static LayerFingerprint of(Path root, String owner, Function<Path, String> permissions) {
+        final MessageDigest digest = newDigest();
+        update(digest, "owner:" + (owner == null ? "" : owner));
+        for (Path path : walk(root)) {
+            update(digest, "path:" + root.relativize(path));
+            update(digest, "permissions:" + permissions.apply(path));
+            try {
+                if (Files.isSymbolicLink(path)) {
+                    update(digest, "link:" + Files.readSymbolicLink(path));
+                } else if (Files.isRegularFile(path)) {
+                    update(digest, "file:" + Files.size(path));
+                    try (InputStream in = Files.newInputStream(path)) {
+                        final byte[] buffer = new byte[64 * 1024];
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            digest.update(buffer, 0, read);
+                        }
+                    }
+                } else {
+                    update(digest, "directory");
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to fingerprint " + path, e);
+            }
+        }
+        return new LayerFingerprint(digest.digest());
+    }
+
+    /**
+     * Sets the last modified time of every file in the layer to one derived from the fingerprint.
+     */
+    void stamp(Path root) {
+        final long value = ByteBuffer.wrap(hash).getLong() & Long.MAX_VALUE;
+        // Stay within a range every file system can represent, using the nanoseconds for additional entropy
+        final FileTime time = FileTime.from(
+                Instant.ofEpochSecond((value >>> 30) % (1L << 32), (value & ((1L << 30) - 1)) % 1_000_000_000L)
+        );
+        // Children first, so stamping doesn't change the time of the parent directories afterwards
+        final List<Path> paths = walk(root);
+        for (int i = paths.size() - 1; i >= 0; i--) {
+            try {
+                Files.getFileAttributeView(paths.get(i), BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                        .setTimes(time, null, null);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to set the modification time of " + paths.get(i), e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return HexFormat.of().formatHex(hash);
+    }
+
+    private static List<Path> walk(Path root) {
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.sorted(Comparator.comparing(Path::toString)).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list " + root, e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new GradleException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockercomponent;
+
+import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
+import org.gradle.api.tasks.Input;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Controls how the top level entries of the copy specs that follow it are grouped into layers.
+ */
+public record LayerPacking(Policy policy, long maxLayerSizeMB) implements ContainerImageBuildInstruction {
+
+    public static final LayerPacking DEFAULT = new LayerPacking(Policy.PER_ENTRY, 0);
+
+    public enum Policy {
+        /**
+         * A layer for each top level file or directory of a copy spec.
+         */
+        PER_ENTRY,
+        /**
+         * A single layer for each copy spec.
+         */
+        PER_COPY_SPEC,
+        /**
+         * Top level entries are added to the same layer, in order, until it reaches the maximum size.
+         */
+        SIZE_BUCKETED
+    }
+
+    @Input
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    @Input
+    public long getMaxLayerSizeMB() {
+        return maxLayerSizeMB;
+    }
+
+    /**
+     * Group the, already sorted, top level entries of a copy spec into layers.
+     */
+    List<List<Path>> pack(List<Path> entries) {
+        return switch (policy) {
+            case PER_ENTRY -> entries.stream().map(List::of).toList();
+            case PER_COPY_SPEC -> entries.isEmpty() ? List.of() : List.of(entries);
+            case SIZE_BUCKETED -> packBySize(entries);
+        };
+    }
+
+    private List<List<Path>> packBySize(List<Path> entries) {
+        final long maxLayerSize = maxLayerSizeMB * 1024 * 1024;
+        final List<List<Path>> layers = new ArrayList<>();
+        List<Path> current = new ArrayList<>();
+        long currentSize = 0;
+        for (Path entry : entries) {
+            final long size = sizeOf(entry);
+            if (!current.isEmpty() && currentSize + size > maxLayerSize) {
+                layers.add(current);
+                current = new ArrayList<>();
+                currentSize = 0;
+            }
+            current.add(entry);
+            currentSize += size;
+        }
+        if (!current.isEmpty()) {
+            layers.add(current);
+        }
+        return layers;
+    }
+
+    private static long sizeOf(Path entry) {
+        try (Stream<Path> files = Files.walk(entry)) {
+            return files.filter(Files::isRegularFile)
+                    .mapToLong(file -> {
+                        try {
+                            return Files.size(file);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .sum();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to compute the size of " + entry, e);
+        }
+    }
+}
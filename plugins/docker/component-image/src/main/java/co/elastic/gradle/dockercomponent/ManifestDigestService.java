@@ -0,0 +1,44 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockercomponent;
+
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves image references to the digest of the manifest they point to, at most once per build.
+ * <p>
+ * Used to fingerprint tasks that build on top of references that might change, so the lookup has to be cheap as it
+ * happens even when the task ends up being up-to-date.
+ */
+public abstract class ManifestDigestService implements BuildService<BuildServiceParameters.None> {
+
+    public static final String NAME = "dockerComponentManifestDigests";
+
+    private final RegistryManifestActions manifestActions = new RegistryManifestActions();
+
+    private final Map<String, String> digests = new ConcurrentHashMap<>();
+
+    public String getDigest(String reference) {
+        return digests.computeIfAbsent(reference, manifestActions::getManifestDigest);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockercomponent;
+
+import co.elastic.gradle.utils.Architecture;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.image.json.V22ManifestTemplate;
+import com.google.cloud.tools.jib.json.JsonTemplateMapper;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.GradleException;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+/**
+ * An <a href="https://github.com/opencontainers/image-spec/blob/main/image-layout.md">OCI image layout</a> holding the
+ * images of all architectures. Layers are kept compressed and addressed by digest, so they can be pushed without being
+ * read again, and layers that are identical across architectures are only stored once.
+ */
+public class OciLayout {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final String LAYER_EXTENSION = ".tar.gz";
+
+    private final Path root;
+
+    public record ManifestDescriptor(Architecture architecture, DescriptorDigest digest, long size) {
+    }
+
+    public OciLayout(Path root) {
+        this.root = root;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Creates an empty layout, removing any previous content.
+     */
+    public static OciLayout create(Path root) throws IOException {
+        if (Files.exists(root)) {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+        final OciLayout layout = new OciLayout(root);
+        Files.createDirectories(layout.getBlobsDir());
+        final ObjectNode ociLayout = objectMapper.createObjectNode();
+        ociLayout.put("imageLayoutVersion", "1.0.0");
+        objectMapper.writeValue(root.resolve("oci-layout").toFile(), ociLayout);
+        return layout;
+    }
+
+    /**
+     * Adds the blobs of the docker tarball written by Jib, in which compressed layers are named after their digest.
+     * Safe to call concurrently for different architectures.
+     */
+    public ManifestDescriptor addDockerTarball(Path tarball, Architecture architecture) throws IOException {
+        final Map<String, Long> layerSizes = new HashMap<>();
+        byte[] config = null;
+        JsonNode tarballManifest = null;
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new BufferedInputStream(Files.newInputStream(tarball)))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                final String name = entry.getName();
+                if (name.endsWith(LAYER_EXTENSION)) {
+                    final Path blob = getBlobsDir().resolve(name.substring(0, name.length() - LAYER_EXTENSION.length()));
+                    if (!Files.exists(blob)) {
+                        final Path tmp = Files.createTempFile(getBlobsDir(), ".", ".tmp");
+                        Files.copy(tar, tmp, StandardCopyOption.REPLACE_EXISTING);
+                        moveInPlace(tmp, blob);
+                    }
+                    layerSizes.put(name, entry.getSize());
+                } else if (name.equals("config.json")) {
+                    config = tar.readAllBytes();
+                } else if (name.equals("manifest.json")) {
+                    tarballManifest = objectMapper.readTree(tar.readAllBytes());
+                }
+            }
+        }
+        if (config == null || tarballManifest == null) {
+            throw new GradleException("Unexpected image tarball layout in " + tarball);
+        }
+
+        try {
+            final V22ManifestTemplate manifest = new V22ManifestTemplate();
+            manifest.setContainerConfiguration(config.length, writeBlob(config));
+            for (JsonNode layer : tarballManifest.get(0).get("Layers")) {
+                final String name = layer.asText();
+                final Long size = layerSizes.get(name);
+                if (size == null) {
+                    throw new GradleException("Layer " + name + " is missing from " + tarball);
+                }
+                manifest.addLayer(size, DescriptorDigest.fromHash(name.substring(0, name.length() - LAYER_EXTENSION.length())));
+            }
+            final byte[] manifestBytes = JsonTemplateMapper.toByteArray(manifest);
+            return new ManifestDescriptor(architecture, writeBlob(manifestBytes), manifestBytes.length);
+        } catch (DigestException e) {
+            throw new GradleException("Invalid layer digest in " + tarball, e);
+        }
+    }
+
+    public void writeIndex(Collection<ManifestDescriptor> manifests) throws IOException {
+        final ObjectNode index = objectMapper.createObjectNode();
+        index.put("schemaVersion", 2);
+        final ArrayNode manifestsNode = index.putArray("manifests");
+        for (ManifestDescriptor manifest : manifests) {
+            final ObjectNode descriptor = manifestsNode.addObject();
+            descriptor.put("mediaType", V22ManifestTemplate.MANIFEST_MEDIA_TYPE);
+            descriptor.put("digest", manifest.digest().toString());
+            descriptor.put("size", manifest.size());
+            final ObjectNode platform = descriptor.putObject("platform");
+            platform.put("architecture", manifest.architecture().dockerName());
+            platform.put("os", "linux");
+        }
+        objectMapper.writeValue(root.resolve("index.json").toFile(), index);
+    }
+
+    public Path getBlob(DescriptorDigest digest) {
+        return getBlobsDir().resolve(digest.getHash());
+    }
+
+    public DescriptorDigest getManifestDigest(Architecture architecture) throws IOException {
+        for (JsonNode descriptor : objectMapper.readTree(root.resolve("index.json").toFile()).get("manifests")) {
+            if (architecture.dockerName().equals(descriptor.get("platform").get("architecture").asText())) {
+                try {
+                    return DescriptorDigest.fromDigest(descriptor.get("digest").asText());
+                } catch (DigestException e) {
+                    throw new GradleException("Invalid manifest digest in " + root, e);
+                }
+            }
+        }
+        throw new GradleException("No image for " + architecture.dockerName() + " in " + root);
+    }
+
+    public byte[] getManifestBytes(Architecture architecture) throws IOException {
+        return Files.readAllBytes(getBlob(getManifestDigest(architecture)));
+    }
+
+    public V22ManifestTemplate getManifest(Architecture architecture) throws IOException {
+        return JsonTemplateMapper.readJson(
+                new String(getManifestBytes(architecture), StandardCharsets.UTF_8),
+                V22ManifestTemplate.class
+        );
+    }
+
+    private Path getBlobsDir() {
+        return root.resolve("blobs").resolve("sha256");
+    }
+
+    private DescriptorDigest writeBlob(byte[] content) throws IOException, DigestException {
+        final DescriptorDigest digest = DescriptorDigest.fromHash(sha256(content));
+        final Path blob = getBlob(digest);
+        if (!Files.exists(blob)) {
+            final Path tmp = Files.createTempFile(getBlobsDir(), ".", ".tmp");
+            Files.write(tmp, content);
+            moveInPlace(tmp, blob);
+        }
+        return digest;
+    }
+
+    private static void moveInPlace(Path tmp, Path blob) throws IOException {
+        // Blobs are content addressed, so if another architecture wrote the same one in the meantime it's identical
+        try {
+            Files.move(tmp, blob, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new GradleException("SHA-256 is not available", e);
+        }
+    }
+}
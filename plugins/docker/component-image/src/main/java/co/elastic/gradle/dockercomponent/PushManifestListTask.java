@@ -18,42 +18,39 @@
  */
 package co.elastic.gradle.dockercomponent;
 
-import co.elastic.gradle.cli.manifest.ManifestToolExecTask;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RegularFileUtils;
-import co.elastic.gradle.utils.RetryUtils;
+import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
 import org.gradle.api.file.ProjectLayout;
+import org.gradle.api.file.RegularFile;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.provider.MapProperty;
 import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
 import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
-import org.gradle.process.ExecOperations;
-import org.gradle.process.ExecResult;
-import org.jetbrains.annotations.NotNull;
 
 import javax.inject.Inject;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.*;
-import java.util.stream.Collectors;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
 
 
-abstract public class PushManifestListTask extends ManifestToolExecTask {
+abstract public class PushManifestListTask extends DefaultTask {
 
 
     public PushManifestListTask() {
         getDigestFile().convention(
                 getProjectLayout().getBuildDirectory().file(getName() + ".digest")
         );
-        setArgs(List.of("--version"));
     }
 
     @Inject
@@ -62,6 +59,18 @@ abstract public class PushManifestListTask extends ManifestToolExecTask {
     @Input
     public abstract MapProperty<Architecture, String> getArchitectureTags();
 
+    /**
+     * The manifests of the images pushed for each architecture, as recorded by {@link ComponentPushTask}.
+     */
+    @Internal
+    public abstract MapProperty<Architecture, Provider<RegularFile>> getArchitectureManifests();
+
+    @InputFiles
+    @PathSensitive(PathSensitivity.NONE)
+    public Collection<Provider<RegularFile>> getAllArchitectureManifests() {
+        return getArchitectureManifests().get().values();
+    }
+
     @Input
     public abstract Property<String> getTag();
 
@@ -73,85 +82,34 @@ abstract public class PushManifestListTask extends ManifestToolExecTask {
         return getDigestFile().map(regularFile -> RegularFileUtils.readString(regularFile).trim());
     }
 
-    @Inject
-    protected abstract ExecOperations getExecOperations();
-
     @TaskAction
     public void pushManifestList() throws IOException {
-        final Set<String> templates = getArchitectureTags().get().values().stream()
-                .map(each -> {
-                    String template = each;
-                    for (Architecture value : Architecture.values()) {
-                        template = template.replace(value.dockerName(), "ARCH");
-                    }
-                    return template;
-                })
-                .collect(Collectors.toSet());
-        if (templates.isEmpty()) {
+        final Map<Architecture, String> architectureTags = getArchitectureTags().get();
+        if (architectureTags.isEmpty()) {
             throw new GradleException("Can't push manifest list, no input tags are present");
         }
-        if (templates.size() > 1) {
-            throw new GradleException("Can't derive template from manifest list: " + templates);
-        }
 
-        final Random random = new Random();
-        final String output = RetryUtils.retry(() -> pushManifestList(templates))
-                .maxAttempt(6)
-                .exponentialBackoff(random.nextInt(5) * 1000, 30000)
-                .onRetryError(error -> getLogger().warn("Error while pushing manifest. Retrying", error))
-                .execute();
-
-        if (output.startsWith("Digest: sha256:")) {
-            Files.writeString(
-                    RegularFileUtils.toPath(getDigestFile()),
-                    output.substring(8, 79)
-            );
-            getLogger().lifecycle("Pushed manifest list to {}", getTag().get());
-        } else {
-            if (output.isEmpty()) {
-                throw new GradleException("manifest-tool succeeded but generated no output. " +
-                                          "Check the task output for additional details.");
-            } else {
-                throw new GradleException("manifest-tool succeeded but generated unexpected output: `" + output +
-                        "`. Check the task output for additional details.");
+        final Map<Architecture, byte[]> manifests = new TreeMap<>();
+        for (Map.Entry<Architecture, Provider<RegularFile>> entry : getArchitectureManifests().get().entrySet()) {
+            if (!architectureTags.containsKey(entry.getKey())) {
+                continue;
             }
+            manifests.put(entry.getKey(), Files.readAllBytes(RegularFileUtils.toPath(entry.getValue())));
         }
-    }
-
-    @NotNull
-    private String pushManifestList(Set<String> templates) {
-        try {
-            final ExecResult result;
-            final String output;
-            try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-                result = getExecOperations().exec(spec -> {
-                    spec.setEnvironment(Map.of(
-                            "HOME", System.getProperty("user.home"),
-                            // required for docker-credential-desktop
-                            "PATH", "/usr/local/bin/"
-                    ));
-                    spec.setExecutable(getExecutable());
-                    spec.setArgs(Arrays.asList(
-                            "push", "from-args",
-                            "--platforms",
-                            getArchitectureTags().get().keySet().stream()
-                                    .map(each -> "linux/" + each.dockerName())
-                                    .collect(Collectors.joining(",")),
-                            "--template", templates.iterator().next(),
-                            "--target", getTag().get()
-                    ));
-                    spec.setStandardOutput(out);
-                    spec.setIgnoreExitValue(true);
-                });
-                output = out.toString(StandardCharsets.UTF_8).trim();
-            }
-            if (result.getExitValue() != 0) {
-                throw new GradleException("Creating the manifest list failed: " + output);
-            }
-            return output;
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+        if (!manifests.keySet().equals(architectureTags.keySet())) {
+            throw new GradleException(
+                    "Can't push manifest list, missing the manifest for some of the architectures: " +
+                    architectureTags.keySet() + " were pushed but got manifests for " + manifests.keySet()
+            );
         }
+
+        final String digest = new RegistryManifestActions().pushManifestList(
+                getTag().get(),
+                architectureTags,
+                manifests
+        );
+        Files.writeString(RegularFileUtils.toPath(getDigestFile()), digest);
+        getLogger().lifecycle("Pushed manifest list to {}@{}", getTag().get(), digest);
     }
 
 }
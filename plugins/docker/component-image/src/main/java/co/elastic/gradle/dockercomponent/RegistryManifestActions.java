@@ -0,0 +1,315 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockercomponent;
+
+import co.elastic.gradle.utils.Architecture;
+import co.elastic.gradle.utils.RetryUtils;
+import com.google.cloud.tools.jib.api.Credential;
+import com.google.cloud.tools.jib.api.CredentialRetrievalException;
+import com.google.cloud.tools.jib.api.CredentialRetriever;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.api.ImageReference;
+import com.google.cloud.tools.jib.api.InvalidImageReferenceException;
+import com.google.cloud.tools.jib.api.LogEvent;
+import com.google.cloud.tools.jib.api.RegistryException;
+import com.google.cloud.tools.jib.blob.Blobs;
+import com.google.cloud.tools.jib.event.EventHandlers;
+import com.google.cloud.tools.jib.frontend.CredentialRetrieverFactory;
+import com.google.cloud.tools.jib.hash.Digests;
+import com.google.cloud.tools.jib.http.FailoverHttpClient;
+import com.google.cloud.tools.jib.image.json.BuildableManifestTemplate;
+import com.google.cloud.tools.jib.image.json.V22ManifestListTemplate;
+import com.google.cloud.tools.jib.image.json.V22ManifestTemplate;
+import com.google.cloud.tools.jib.json.JsonTemplateMapper;
+import com.google.cloud.tools.jib.registry.ManifestAndDigest;
+import com.google.cloud.tools.jib.registry.RegistryClient;
+import com.google.cloud.tools.jib.registry.RegistryErrorException;
+import org.gradle.api.GradleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Reads and writes manifests directly through the registry client that ships with Jib.
+ */
+public class RegistryManifestActions {
+
+    private final Logger logger = LoggerFactory.getLogger(RegistryManifestActions.class);
+
+    private final FailoverHttpClient httpClient = new FailoverHttpClient(
+            false,
+            false,
+            logEvent -> logger.debug(logEvent.getMessage())
+    );
+
+    private final EventHandlers eventHandlers = EventHandlers.builder()
+            .add(LogEvent.class, logEvent -> logger.debug(logEvent.getMessage()))
+            .build();
+
+    /**
+     * Fetches the manifest of an image that was just pushed, in the exact serialization it was pushed with.
+     */
+    public byte[] pullManifest(String reference, String digest) {
+        return RetryUtils.retry(() -> {
+                    try {
+                        final ImageReference imageReference = ImageReference.parse(reference);
+                        final RegistryClient client = newRegistryClient(imageReference, false);
+                        final V22ManifestTemplate manifest = client.pullManifest(digest, V22ManifestTemplate.class)
+                                .getManifest();
+                        if (!Digests.computeJsonDigest(manifest).toString().equals(digest)) {
+                            throw new GradleException("The manifest of " + reference + " doesn't match " + digest);
+                        }
+                        return JsonTemplateMapper.toByteArray(manifest);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (RegistryException | InvalidImageReferenceException e) {
+                        throw new GradleException("Error pulling the manifest of " + reference + "@" + digest, e);
+                    }
+                }).maxAttempt(6)
+                .exponentialBackoff(1000, 30000)
+                .onRetryError(error -> logger.warn("Error while pulling manifest. Retrying", error))
+                .execute();
+    }
+
+    /**
+     * Pushes an image straight from its OCI layout. Blobs the registry already has are skipped without being read.
+     *
+     * @return the digest of the pushed manifest
+     */
+    public String pushLayout(OciLayout layout, Architecture architecture, String tag, RetryUtils.RetryBudget retryBudget) {
+        return RetryUtils.retry(() -> {
+                    try {
+                        final ImageReference target = ImageReference.parse(tag);
+                        final RegistryClient client = newRegistryClient(target, true);
+                        final V22ManifestTemplate manifest = layout.getManifest(architecture);
+
+                        final List<DescriptorDigest> blobs = new ArrayList<>();
+                        blobs.add(Objects.requireNonNull(manifest.getContainerConfiguration()).getDigest());
+                        for (BuildableManifestTemplate.ContentDescriptorTemplate layer : manifest.getLayers()) {
+                            blobs.add(layer.getDigest());
+                        }
+                        int pushedBlobs = 0;
+                        for (DescriptorDigest blob : blobs) {
+                            if (client.checkBlob(blob).isPresent()) {
+                                logger.debug("Blob {} already exists in {}", blob, target);
+                                continue;
+                            }
+                            client.pushBlob(blob, Blobs.from(layout.getBlob(blob)), null, written -> {});
+                            pushedBlobs++;
+                        }
+                        logger.info("Pushed {} of {} blobs to {}, the others were already there", pushedBlobs, blobs.size(), tag);
+
+                        final DescriptorDigest expected = layout.getManifestDigest(architecture);
+                        final DescriptorDigest pushed = client.pushManifest(manifest, target.getQualifier());
+                        if (!pushed.equals(expected)) {
+                            throw new GradleException(
+                                    "The registry reported digest " + pushed + " for " + tag + " but expected " + expected
+                            );
+                        }
+                        return pushed.toString();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (RegistryException | InvalidImageReferenceException e) {
+                        throw new GradleException("Error pushing image layout to " + tag, e);
+                    }
+                }).maxAttempt(6)
+                .budget(retryBudget)
+                .exponentialBackoff(1000, 30000)
+                .onRetryError(error -> logger.warn("Error while pushing image. Retrying", error))
+                .execute();
+    }
+
+    /**
+     * Resolves the digest of the manifest a reference currently points to, without pulling anything else.
+     */
+    public String getManifestDigest(String reference) {
+        return RetryUtils.retry(() -> {
+                    try {
+                        final ImageReference imageReference = ImageReference.parse(reference);
+                        final RegistryClient client = newRegistryClient(imageReference, false);
+                        return client.pullManifest(imageReference.getQualifier()).getDigest().toString();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (RegistryException | InvalidImageReferenceException e) {
+                        throw new GradleException("Failed to resolve the manifest digest of " + reference, e);
+                    }
+                }).maxAttempt(6)
+                .exponentialBackoff(1000, 30000)
+                .onRetryError(error -> logger.warn("Error while resolving manifest digest. Retrying", error))
+                .execute();
+    }
+
+    /**
+     * Pushes a manifest list to the given tag, referencing the already pushed per architecture images.
+     *
+     * @param tag       the tag of the manifest list
+     * @param images    the tag each architecture was pushed to
+     * @param manifests the manifest of each architecture as returned by {@link #pullManifest(String, String)}
+     * @return the digest of the manifest list
+     */
+    public String pushManifestList(
+            String tag,
+            Map<Architecture, String> images,
+            Map<Architecture, byte[]> manifests
+    ) {
+        return RetryUtils.retry(() -> {
+                    try {
+                        return doPushManifestList(ImageReference.parse(tag), images, manifests);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (RegistryException | InvalidImageReferenceException | DigestException e) {
+                        throw new GradleException("Error pushing manifest list " + tag, e);
+                    }
+                }).maxAttempt(6)
+                .exponentialBackoff(1000, 30000)
+                .onRetryError(error -> logger.warn("Error while pushing manifest list. Retrying", error))
+                .execute();
+    }
+
+    private String doPushManifestList(
+            ImageReference target,
+            Map<Architecture, String> images,
+            Map<Architecture, byte[]> manifests
+    ) throws IOException, RegistryException, InvalidImageReferenceException, DigestException {
+        final RegistryClient targetClient = newRegistryClient(target, true);
+
+        final V22ManifestListTemplate manifestList = new V22ManifestListTemplate();
+        for (Map.Entry<Architecture, byte[]> entry : manifests.entrySet()) {
+            final Architecture architecture = entry.getKey();
+            final byte[] manifestBytes = entry.getValue();
+            final V22ManifestTemplate manifest = JsonTemplateMapper.readJson(
+                    new String(manifestBytes, StandardCharsets.UTF_8),
+                    V22ManifestTemplate.class
+            );
+            final DescriptorDigest manifestDigest = Digests.computeJsonDigest(manifest);
+
+            final ImageReference source = ImageReference.parse(images.get(architecture));
+            if (!isSameRepository(source, target)) {
+                // A manifest list can only reference manifests from its own repository
+                copyManifest(source, target, targetClient, manifest, manifestDigest);
+            }
+
+            final V22ManifestListTemplate.ManifestDescriptorTemplate descriptor =
+                    new V22ManifestListTemplate.ManifestDescriptorTemplate();
+            descriptor.setMediaType(V22ManifestTemplate.MANIFEST_MEDIA_TYPE);
+            descriptor.setSize(manifestBytes.length);
+            descriptor.setDigest(manifestDigest.toString());
+            descriptor.setPlatform(architecture.dockerName(), "linux");
+            manifestList.addManifest(descriptor);
+        }
+
+        final DescriptorDigest digest = Digests.computeJsonDigest(manifestList);
+        final Optional<DescriptorDigest> existing = getExistingDigest(targetClient, target.getQualifier());
+        if (existing.isPresent() && existing.get().equals(digest)) {
+            logger.info("Manifest list {} is already up to date ({})", target, digest);
+            return digest.toString();
+        }
+        final DescriptorDigest pushedDigest = targetClient.pushManifest(manifestList, target.getQualifier());
+        if (!pushedDigest.equals(digest)) {
+            throw new GradleException(
+                    "The registry reported digest " + pushedDigest + " for " + target + " but expected " + digest
+            );
+        }
+        return digest.toString();
+    }
+
+    private void copyManifest(
+            ImageReference source,
+            ImageReference target,
+            RegistryClient targetClient,
+            V22ManifestTemplate manifest,
+            DescriptorDigest manifestDigest
+    ) throws IOException, RegistryException, InvalidImageReferenceException {
+        final boolean sameRegistry = source.getRegistry().equals(target.getRegistry());
+        final RegistryClient sourceClient = newRegistryClient(source, false);
+
+        final List<DescriptorDigest> blobs = new ArrayList<>();
+        blobs.add(Objects.requireNonNull(manifest.getContainerConfiguration()).getDigest());
+        for (BuildableManifestTemplate.ContentDescriptorTemplate layer : manifest.getLayers()) {
+            blobs.add(layer.getDigest());
+        }
+        for (DescriptorDigest blob : blobs) {
+            if (targetClient.checkBlob(blob).isPresent()) {
+                continue;
+            }
+            // Try to mount the blob from the source repository, and only stream it through if the registry refuses
+            targetClient.pushBlob(
+                    blob,
+                    sourceClient.pullBlob(blob, size -> {}, written -> {}),
+                    sameRegistry ? source.getRepository() : null,
+                    written -> {}
+            );
+        }
+        targetClient.pushManifest(manifest, manifestDigest.toString());
+    }
+
+    private Optional<DescriptorDigest> getExistingDigest(RegistryClient client, String qualifier)
+            throws IOException, RegistryException {
+        try {
+            final ManifestAndDigest<?> existing = client.pullManifest(qualifier);
+            return Optional.of(existing.getDigest());
+        } catch (RegistryErrorException e) {
+            logger.debug("No existing manifest for {}", qualifier, e);
+            return Optional.empty();
+        }
+    }
+
+    private static boolean isSameRepository(ImageReference source, ImageReference target) {
+        return source.getRegistry().equals(target.getRegistry()) &&
+               source.getRepository().equals(target.getRepository());
+    }
+
+    private RegistryClient newRegistryClient(ImageReference reference, boolean push)
+            throws IOException, RegistryException {
+        final RegistryClient client = RegistryClient.factory(
+                        eventHandlers,
+                        reference.getRegistry(),
+                        reference.getRepository(),
+                        httpClient
+                )
+                .setCredential(getCredential(reference).orElse(null))
+                .newRegistryClient();
+        final boolean bearerAuth = push ? client.doPushBearerAuth() : client.doPullBearerAuth();
+        if (!bearerAuth) {
+            client.configureBasicAuth();
+        }
+        return client;
+    }
+
+    private Optional<Credential> getCredential(ImageReference reference) {
+        final CredentialRetriever retriever = CredentialRetrieverFactory.forImage(
+                reference,
+                credentialEvent -> logger.info(credentialEvent.getMessage())
+        ).dockerConfig();
+        try {
+            return retriever.retrieve();
+        } catch (CredentialRetrievalException e) {
+            throw new GradleException("Failed to retrieve credentials for " + reference, e);
+        }
+    }
+}
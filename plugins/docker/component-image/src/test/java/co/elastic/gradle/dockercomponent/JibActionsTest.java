@@ -0,0 +1,87 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockercomponent;
+
+import co.elastic.gradle.utils.ArchiveSizeLimit;
+import co.elastic.gradle.utils.Architecture;
+import co.elastic.gradle.utils.ZstdCompression;
+import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
+import co.elastic.gradle.utils.docker.instruction.Copy;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class JibActionsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void changedContentCreatesANewLayerEvenWithTheSameSizeAndTime() throws IOException {
+        final Path contextRoot = tempDir.resolve("context");
+        final Path file = Files.createDirectories(contextRoot.resolve("layer0")).resolve("content.txt");
+        Files.writeString(file, "first");
+        final List<ContainerImageBuildInstruction> instructions = List.of(new Copy(spec -> {
+        }, "layer0", null));
+        // The application layer cache is kept across builds, so make sure the stamp doesn't let it return a stale layer
+        final JibActions actions = new JibActions(tempDir.resolve("jib"));
+
+        final DescriptorDigest first = buildLayer(actions, instructions, contextRoot);
+        final FileTime stamped = Files.getLastModifiedTime(file);
+        Files.writeString(file, "other");
+        Files.setLastModifiedTime(file, stamped);
+        final DescriptorDigest second = buildLayer(actions, instructions, contextRoot);
+
+        assertNotEquals(first, second);
+        assertEquals(second, buildLayer(actions, instructions, contextRoot));
+    }
+
+    private DescriptorDigest buildLayer(
+            JibActions actions,
+            List<ContainerImageBuildInstruction> instructions,
+            Path contextRoot
+    ) throws IOException {
+        final Path imageId = tempDir.resolve("image.id");
+        final Path createdAt = tempDir.resolve("image.createdAt");
+        final OciLayout layout = OciLayout.create(tempDir.resolve("image.layout"));
+        actions.stampLayers(List.of(instructions), contextRoot);
+        actions.buildArchive(
+                Architecture.current(),
+                null,
+                new ZstdCompression(ZstdCompression.DEFAULT_LEVEL, 0, false),
+                new ArchiveSizeLimit(":test", -1),
+                imageId::toFile,
+                createdAt::toFile,
+                layout,
+                instructions,
+                contextRoot,
+                Files.createDirectories(tempDir.resolve("tmp"))
+        );
+        return layout.getManifest(Architecture.current()).getLayers().get(0).getDigest();
+    }
+}
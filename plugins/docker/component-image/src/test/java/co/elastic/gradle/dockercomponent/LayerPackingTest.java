@@ -0,0 +1,104 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockercomponent;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LayerPackingTest {
+
+    private static final int KB = 1024;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void perEntryCreatesALayerForEachEntry() throws IOException {
+        final Path first = file("first", KB);
+        final Path second = file("second", KB);
+        final Path third = file("third", KB);
+
+        assertEquals(
+                List.of(List.of(first), List.of(second), List.of(third)),
+                new LayerPacking(LayerPacking.Policy.PER_ENTRY, 0).pack(List.of(first, second, third))
+        );
+        assertEquals(List.of(), new LayerPacking(LayerPacking.Policy.PER_ENTRY, 0).pack(List.of()));
+    }
+
+    @Test
+    void perCopySpecCreatesASingleLayer() throws IOException {
+        final Path first = file("first", KB);
+        final Path second = file("second", KB);
+
+        assertEquals(
+                List.of(List.of(first, second)),
+                new LayerPacking(LayerPacking.Policy.PER_COPY_SPEC, 0).pack(List.of(first, second))
+        );
+        assertEquals(List.of(), new LayerPacking(LayerPacking.Policy.PER_COPY_SPEC, 0).pack(List.of()));
+    }
+
+    @Test
+    void sizeBucketedFillsLayersInOrder() throws IOException {
+        final Path first = file("first", 400 * KB);
+        final Path second = file("second", 400 * KB);
+        final Path directory = Files.createDirectories(tempDir.resolve("directory"));
+        file("directory/nested/one", 300 * KB);
+        file("directory/two", 300 * KB);
+        final Path last = file("last", 100 * KB);
+
+        assertEquals(
+                List.of(List.of(first, second), List.of(directory, last)),
+                new LayerPacking(LayerPacking.Policy.SIZE_BUCKETED, 1).pack(List.of(first, second, directory, last))
+        );
+    }
+
+    @Test
+    void sizeBucketedKeepsOversizeEntriesInTheirOwnLayer() throws IOException {
+        final Path small = file("small", 100 * KB);
+        final Path large = file("large", 3 * KB * KB);
+        final Path other = file("other", 100 * KB);
+
+        assertEquals(
+                List.of(List.of(small), List.of(large), List.of(other)),
+                new LayerPacking(LayerPacking.Policy.SIZE_BUCKETED, 1).pack(List.of(small, large, other))
+        );
+        assertEquals(
+                List.of(List.of(large)),
+                new LayerPacking(LayerPacking.Policy.SIZE_BUCKETED, 1).pack(List.of(large))
+        );
+    }
+
+    @Test
+    void sizeBucketedWithoutEntriesCreatesNoLayers() {
+        assertEquals(List.of(), new LayerPacking(LayerPacking.Policy.SIZE_BUCKETED, 1).pack(List.of()));
+    }
+
+    private Path file(String name, int size) throws IOException {
+        final Path file = tempDir.resolve(name);
+        Files.createDirectories(file.getParent());
+        return Files.write(file, new byte[size]);
+    }
+}